@@ -0,0 +1,252 @@
+# application/services/code_chunker.py
+import ast
+import hashlib
+import os
+import threading
+from collections import OrderedDict
+from typing import List, Optional, Tuple
+
+from core.domain.models import CodeChunk
+
+# Languages whose blocks are delimited by braces or statements end with a semicolon
+BRACE_EXTENSIONS = {
+    '.java', '.js', '.jsx', '.ts', '.tsx', '.css', '.c', '.cpp', '.h', '.hpp', '.cs', '.go', '.rs', '.php',
+    '.swift', '.kt', '.scala', '.groovy', '.dart', '.r', '.sql', '.gradle', '.tf'
+}
+# Files where a line like "# Title" or "[section]" starts a new unit
+HEADING_EXTENSIONS = {'.md', '.ini', '.toml', '.properties'}
+
+Span = Tuple[int, int, bool]  # 0-based first line, exclusive end line, may merge with its neighbours
+
+
+def scan_braces(line: str, level: int, open_span: Optional[str], quotes: str) -> Tuple[int, Optional[str], bool]:
+    """
+    Nesting level after line, skipping strings and comments; also whether a bracket was seen.
+    open_span carries the closing delimiter of a /* comment or ` template string from one
+    line to the next, None outside of them.
+    """
+    touched = False
+    quote = '`' if open_span == '`' else None
+    in_comment = open_span == '*/'
+    i = 0
+    while i < len(line):
+        char = line[i]
+        pair = line[i:i + 2]
+        if in_comment:
+            if pair == '*/':
+                in_comment = False
+                i += 1
+        elif quote:
+            if char == '\\':
+                i += 1
+            elif char == quote:
+                quote = None
+        elif pair == '//':
+            break
+        elif pair == '/*':
+            in_comment = True
+            i += 1
+        elif char in quotes:
+            quote = char
+        elif char in '{([':
+            level += 1
+            touched = True
+        elif char in '})]':
+            level -= 1
+            touched = True
+        i += 1
+    # Only template strings span lines; other quotes left open are most likely a misread
+    return level, '*/' if in_comment else '`' if quote == '`' else None, touched
+
+
+def _windows(lines: List[str], lo: int, hi: int, max_lines: int, overlap: int) -> List[Tuple[int, int]]:
+    """
+    Overlapping windows of at most max_lines lines over lines[lo:hi], for units too long to keep whole.
+    Windows end at a blank line when one is near, so a chunk rarely stops mid-block.
+    """
+    spans = []
+    start = lo
+    while start < hi:
+        end = min(start + max_lines, hi)
+        if hi - end <= max_lines // 4:
+            end = hi  # Stretch the last window rather than leave a sliver
+        if end < hi:
+            # Prefer the last blank line in the second half of the window
+            for candidate in range(end, start + max_lines // 2, -1):
+                if not lines[candidate - 1].strip():
+                    end = candidate
+                    break
+        if any(line.strip() for line in lines[start:end]):
+            spans.append((start, end))
+        if end >= hi:
+            break
+        start = max(end - overlap, start + 1)
+    return spans
+
+
+class CodeChunker:
+    """
+    Splits project files into syntactic units: functions, classes and top-level blocks.
+    Python is parsed with ast; brace languages are split where their nesting returns to
+    the top level; other text at blank lines and headings. Units longer than max_lines
+    are split into their members, then into line windows. Unit boundaries are cached by
+    content hash, so a file is only parsed again when it changes.
+    """
+
+    def __init__(self, max_lines: int = 80, max_cached_files: int = 4096):
+        self.max_lines = max_lines
+        self.max_cached_files = max_cached_files
+        self._spans: "OrderedDict[tuple, List[Tuple[int, int]]]" = OrderedDict()  # (ext, sha256) -> line ranges
+        self._lock = threading.Lock()
+
+        # Metrics
+        self.parsed_files = 0
+        self.cached_files = 0
+
+    def chunk(self, filename: str, content: str) -> List[CodeChunk]:
+        ext = os.path.splitext(filename)[1].lower()
+        key = (ext, hashlib.sha256(content.encode('utf-8')).hexdigest())
+        lines = content.split("\n")
+
+        with self._lock:
+            spans = self._spans.get(key)
+            if spans is not None:
+                self._spans.move_to_end(key)
+                self.cached_files += 1
+
+        if spans is None:
+            spans = self._split(ext, content, lines)
+            with self._lock:
+                self.parsed_files += 1
+                self._spans[key] = spans
+                while len(self._spans) > self.max_cached_files:
+                    self._spans.popitem(last=False)
+
+        return [CodeChunk(filename, start + 1, end, "\n".join(lines[start:end])) for start, end in spans]
+
+    def stats(self) -> dict:
+        """Snapshot of the boundary cache, for sizing max_cached_files"""
+        with self._lock:
+            return {'cached': len(self._spans), 'parsed_files': self.parsed_files, 'cached_files': self.cached_files}
+
+    def _split(self, ext: str, content: str, lines: List[str]) -> List[Tuple[int, int]]:
+        units: Optional[List[Span]] = None
+        if ext == '.py':
+            units = self._python_units(content, lines)
+        elif ext in BRACE_EXTENSIONS:
+            # Rust uses single quotes for lifetimes, which never close
+            units = self._brace_units(lines, 0, len(lines), 0, '"' if ext == '.rs' else '"\'`')
+        if units is None:
+            units = self._text_units(lines, ext in HEADING_EXTENSIONS)
+
+        spans = []
+        for start, end in self._merge(units):
+            if end - start > self.max_lines:
+                spans.extend(_windows(lines, start, end, self.max_lines, 5))
+            else:
+                spans.append((start, end))
+        return spans
+
+    def _merge(self, units: List[Span]) -> List[Tuple[int, int]]:
+        """Join runs of small mergeable units (imports, constants, one-liners) up to half of max_lines"""
+        merged: List[List] = []
+        for start, end, mergeable in units:
+            last = merged[-1] if merged else None
+            if mergeable and last is not None and last[2] and end - last[0] <= self.max_lines // 2:
+                last[1] = end
+            else:
+                merged.append([start, end, mergeable])
+        return [(start, end) for start, end, _ in merged]
+
+    def _python_units(self, content: str, lines: List[str]) -> Optional[List[Span]]:
+        try:
+            tree = ast.parse(content)
+        except (SyntaxError, ValueError):
+            return None
+        return self._python_body(tree.body, lines)
+
+    def _python_body(self, body: List[ast.stmt], lines: List[str]) -> List[Span]:
+        units = []
+        for node in body:
+            start = min([node.lineno] + [d.lineno for d in getattr(node, 'decorator_list', [])]) - 1
+            start = self._leading_comments(lines, start, units[-1][1] if units else 0)
+            end = node.end_lineno
+            definition = isinstance(node, (ast.FunctionDef, ast.AsyncFunctionDef, ast.ClassDef))
+
+            if isinstance(node, ast.ClassDef) and end - start > self.max_lines and node.body:
+                # A large class becomes its header plus one unit per member
+                members = self._python_body(node.body, lines)
+                units.append((start, members[0][0], False))
+                units.extend(members)
+            else:
+                units.append((start, end, not definition))
+        return units
+
+    @staticmethod
+    def _leading_comments(lines: List[str], start: int, floor: int) -> int:
+        """Extend a unit upwards over the comment lines directly above it"""
+        while start > floor and lines[start - 1].lstrip().startswith('#'):
+            start -= 1
+        return start
+
+    def _brace_units(self, lines: List[str], lo: int, hi: int, depth: int, quotes: str) -> List[Span]:
+        """Units of lines[lo:hi] that open and close at the given nesting depth"""
+        units = []  # (start, end, mergeable, first line of the body or None)
+        level = depth
+        start = body = None
+        opened = False
+        open_span = None
+        for i in range(lo, hi):
+            if start is None:
+                if not lines[i].strip():
+                    continue
+                start, body, opened = i, None, False
+            level, open_span, touched = scan_braces(lines[i], level, open_span, quotes)
+            opened = opened or touched
+            if body is None and level > depth:
+                body = i + 1
+
+            stripped = lines[i].strip()
+            at_end = i + 1 == hi or not lines[i + 1].strip()
+            if level <= depth and not open_span and (stripped.endswith(('}', ';', '});', '},')) or at_end):
+                units.append((start, i + 1, not opened or i + 1 - start <= 3, body))
+                start = None
+                level = depth
+        if start is not None:
+            units.append((start, hi, False, body))
+
+        result = []
+        for start, end, mergeable, body in units:
+            # Split a large class or namespace into its members, keeping the lines up to its brace as a header
+            if end - start > self.max_lines and body is not None and body < end - 1:
+                members = self._brace_units(lines, body, end - 1, depth + 1, quotes)
+                if len(members) > 1:
+                    result.append((start, members[0][0], False))
+                    result.extend(members)
+                    continue
+            result.append((start, end, mergeable))
+        return result
+
+    def _text_units(self, lines: List[str], headings: bool) -> List[Span]:
+        """Blank-line separated top-level blocks; headings and sections start a new unit"""
+        units = []
+        start = None
+        for i, line in enumerate(lines):
+            stripped = line.strip()
+            heading = headings and (stripped.startswith('#') or stripped.startswith('['))
+            if start is not None and heading:
+                units.append((start, i, True))
+                start = None
+            if start is None:
+                if stripped:
+                    start = i
+                continue
+            # A blank line closes a block unless the next line is indented, i.e. still inside it
+            if not stripped:
+                following = lines[i + 1] if i + 1 < len(lines) else ""
+                if not following[:1].isspace():
+                    units.append((start, i, True))
+                    start = None
+        if start is not None:
+            units.append((start, len(lines), True))
+        return units
@@ -0,0 +1,207 @@
+# application/services/context_packer.py
+import hashlib
+import threading
+from collections import OrderedDict
+from dataclasses import dataclass, field
+from typing import Dict, List, Optional
+
+from core.domain.models import CodeChunk, ProjectFile
+
+
+@dataclass
+class PackedContext:
+    """Project context text and what went into it"""
+    text: str = ""
+    token_count: int = 0
+    budget: int = 0
+    included: List[str] = field(default_factory=list)
+    truncated: List[str] = field(default_factory=list)
+    omitted: List[str] = field(default_factory=list)
+    chunks: List[CodeChunk] = field(default_factory=list)  # Retrieved chunks that were included
+    outlined: List[str] = field(default_factory=list)  # Files shown by their outline
+
+
+def model_context_window(model, tokenizer) -> Optional[int]:
+    """Maximum sequence length of the model, if it can be determined"""
+    config = getattr(model, 'config', None)
+    window = getattr(config, 'max_position_embeddings', None)
+    if window:
+        return int(window)
+
+    # HuggingFace uses a huge sentinel when the tokenizer has no limit configured
+    window = getattr(tokenizer, 'model_max_length', None)
+    if window and window < 10_000_000:
+        return int(window)
+    return None
+
+
+class ContextPacker:
+    """
+    Packs project files into a prompt section that fits a token budget.
+    Token counts come from the real tokenizer and are cached by content hash, so
+    unchanged files are only tokenized once across turns and sessions.
+    """
+
+    def __init__(self, max_cached_counts: int = 4096):
+        self.max_cached_counts = max_cached_counts
+        self._counts: "OrderedDict[tuple, int]" = OrderedDict()  # (tokenizer, sha256) -> tokens
+        self._lock = threading.Lock()
+
+    def count_tokens(self, text: str, tokenizer) -> int:
+        """Number of tokens text encodes to, without special tokens"""
+        key = (id(tokenizer), hashlib.sha256(text.encode('utf-8')).hexdigest())
+        with self._lock:
+            if key in self._counts:
+                self._counts.move_to_end(key)
+                return self._counts[key]
+
+        count = len(self._encode(text, tokenizer))
+
+        with self._lock:
+            self._counts[key] = count
+            while len(self._counts) > self.max_cached_counts:
+                self._counts.popitem(last=False)
+        return count
+
+    def pack(self, files: Dict[str, ProjectFile], primary_file: Optional[str], selected_files: List[str],
+             budget: int, tokenizer, chunks: Optional[List[CodeChunk]] = None,
+             outline_files: Optional[List[str]] = None) -> PackedContext:
+        """
+        Build the project context from the primary file, the project structure, the
+        retrieved chunks and the other selected files, in that order of priority, using
+        at most budget tokens. A primary file that would take more than half of the room is
+        represented by its retrieved chunks when there are any, else cut at a line boundary if
+        it does not fit; chunks (most relevant first) and other files are included whole or not at all.
+        Any room left is filled with the outlines of outline_files not shown in full, in that order.
+        """
+        packed = PackedContext(budget=budget)
+        if not files or budget <= 0:
+            return packed
+
+        parts = ["Project files:"]
+        used = self.count_tokens(parts[0], tokenizer)
+
+        # Keep room for the note about omitted files so the result never exceeds the budget
+        note = "\nNote: Additional files exist but were omitted for brevity."
+        note_tokens = self.count_tokens(note, tokenizer)
+        # Sections are joined by a newline, counted as one token each
+        limit = budget - note_tokens - 1
+
+        # Primary file first, truncated if it has to be
+        if primary_file in files:
+            primary = files[primary_file]
+            section = self._file_section("Primary file", primary)
+            tokens = self.count_tokens(section, tokenizer)
+            structure_reserve = self._structure_tokens(files, tokenizer)
+            room = limit - used - structure_reserve - 2
+
+            by_units = tokens > room // 2 and any(chunk.filename == primary.filename for chunk in chunks or [])
+            if by_units:
+                section = ""
+            elif tokens > room:
+                section, tokens = self._truncate_section("Primary file", primary, room, tokenizer)
+                if section:
+                    packed.truncated.append(primary.filename)
+                else:
+                    packed.omitted.append(primary.filename)
+            if section:
+                parts.append(section)
+                used += tokens + 1
+                packed.included.append(primary.filename)
+
+        # The list of all filenames is cheap and tells the model what else exists
+        structure = self._structure(files)
+        tokens = self.count_tokens(structure, tokenizer)
+        if used + tokens <= limit:
+            parts.append(structure)
+            used += tokens + 1
+
+        # Retrieved chunks of files not shown in full, listed in file order
+        selected_chunks = []
+        for chunk in chunks or []:
+            if chunk.filename in packed.included or chunk.filename not in files:
+                continue
+            tokens = self.count_tokens(self._chunk_section(chunk), tokenizer)
+            if used + tokens > limit:
+                continue
+            selected_chunks.append(chunk)
+            used += tokens + 1
+        selected_chunks.sort(key=lambda chunk: (chunk.filename, chunk.start_line))
+        parts.extend(self._chunk_section(chunk) for chunk in selected_chunks)
+        packed.chunks = selected_chunks
+
+        # Then as many of the other selected files as fit
+        for filename in selected_files:
+            if filename == primary_file or filename not in files:
+                continue
+            section = self._file_section("File", files[filename])
+            tokens = self.count_tokens(section, tokenizer)
+            if used + tokens > limit:
+                packed.omitted.append(filename)
+                continue
+            parts.append(section)
+            used += tokens + 1
+            packed.included.append(filename)
+
+        # Outlines tell the model what the remaining files define for a fraction of their tokens
+        for filename in outline_files or []:
+            file = files.get(filename)
+            if file is None or not file.outline or filename in packed.included or filename in packed.outlined:
+                continue
+            section = self._outline_section(file)
+            tokens = self.count_tokens(section, tokenizer)
+            if used + tokens > limit:
+                continue
+            parts.append(section)
+            used += tokens + 1
+            packed.outlined.append(filename)
+            if filename in packed.omitted:
+                packed.omitted.remove(filename)
+
+        if packed.omitted:
+            parts.append(note)
+            used += note_tokens + 1
+
+        packed.text = "\n".join(parts)
+        packed.token_count = used
+        return packed
+
+    @staticmethod
+    def _file_section(label: str, file: ProjectFile) -> str:
+        return f"\n{label} - {file.filename}:\n```\n{file.content}\n```\n"
+
+    @staticmethod
+    def _outline_section(file: ProjectFile) -> str:
+        return f"\nOutline - {file.filename}:\n```\n{file.outline}\n```\n"
+
+    @staticmethod
+    def _chunk_section(chunk: CodeChunk) -> str:
+        return f"\nFile - {chunk.filename} (lines {chunk.start_line}-{chunk.end_line}):\n```\n{chunk.text}\n```\n"
+
+    @staticmethod
+    def _structure(files: Dict[str, ProjectFile]) -> str:
+        return "\nProject structure:\n" + "\n".join([f"- {f}" for f in files.keys()])
+
+    def _structure_tokens(self, files: Dict[str, ProjectFile], tokenizer) -> int:
+        return self.count_tokens(self._structure(files), tokenizer)
+
+    def _truncate_section(self, label: str, file: ProjectFile, room: int, tokenizer):
+        """Keep as many leading lines of the file as fit in room tokens"""
+        wrapper = self._file_section(label, ProjectFile(file.filename, ""))
+        marker = "\n... (truncated)"
+        room -= self.count_tokens(wrapper + marker, tokenizer)
+        if room <= 0:
+            return "", 0
+
+        ids = self._encode(file.content, tokenizer)[:room]
+        head = tokenizer.decode(ids, skip_special_tokens=True)
+        # Cut back to a whole line so the model never sees half a statement
+        if "\n" in head:
+            head = head[:head.rindex("\n")]
+
+        section = self._file_section(label, ProjectFile(file.filename, head + marker))
+        return section, self.count_tokens(section, tokenizer)
+
+    @staticmethod
+    def _encode(text: str, tokenizer) -> List[int]:
+        return tokenizer(text, add_special_tokens=False).input_ids
@@ -0,0 +1,191 @@
+# application/services/history_summarizer.py
+import queue
+import threading
+import time
+from typing import Callable, List, Optional, Tuple
+
+from core.domain.models import ChatMessage
+
+
+def _contains(messages: List[ChatMessage], message: ChatMessage) -> bool:
+    # Messages are compared by identity; two turns may have the same text
+    return any(m is message for m in messages)
+
+
+class ConversationSummary:
+    """
+    Running summary of the turns a conversation no longer keeps verbatim.
+    A new summary is staged in the background while its turns are still in the history,
+    and only replaces the one in the prompt once all of them have been evicted, so the
+    prompt prefix changes at eviction time only and no turn appears twice.
+    """
+
+    def __init__(self):
+        self.text = ""  # Summary currently shown in the prompt
+        self._staged: Optional[Tuple[str, List[ChatMessage]]] = None  # Newer summary and the turns it adds
+        self._job: Optional[List[ChatMessage]] = None  # Turns the running job summarizes
+        self._evicted: List[ChatMessage] = []  # Evicted turns covered by the staged summary or the job
+        self._unsummarized: List[ChatMessage] = []  # Evicted turns no summary covers yet
+        self._lock = threading.Lock()
+
+    def evict(self, messages: List[ChatMessage]):
+        """Record turns that left the history; applies the staged summary once it is complete"""
+        with self._lock:
+            for message in messages:
+                if _contains(self._staged[1] if self._staged else [], message) or _contains(self._job or [], message):
+                    self._evicted.append(message)
+                else:
+                    self._unsummarized.append(message)
+            self._apply()
+
+    def begin(self, candidates: List[ChatMessage]) -> Optional[Tuple[str, List[ChatMessage]]]:
+        """
+        Start a job over the evicted turns nothing covers yet plus the given candidates.
+        Returns the summary to extend and the turns to fold into it, or None if there is nothing to do.
+        """
+        with self._lock:
+            if self._job is not None:
+                return None
+            staged = self._staged[1] if self._staged else []
+            messages = self._unsummarized + [m for m in candidates if not _contains(staged, m)]
+            if not messages:
+                return None
+            self._evicted.extend(self._unsummarized)
+            self._unsummarized = []
+            self._job = messages
+            return (self._staged[0] if self._staged else self.text), messages
+
+    def finish(self, text: Optional[str]):
+        """Stage the job's summary, or give its evicted turns back when it failed"""
+        with self._lock:
+            job, self._job = self._job, None
+            if text is None:
+                self._unsummarized = [m for m in job if _contains(self._evicted, m)] + self._unsummarized
+                self._evicted = [m for m in self._evicted if not _contains(job, m)]
+                return
+            self._staged = (text, (self._staged[1] if self._staged else []) + job)
+            self._apply()
+
+    def _apply(self):
+        if self._staged is None:
+            return
+        text, covers = self._staged
+        if all(_contains(self._evicted, m) for m in covers):
+            self.text = text
+            self._staged = None
+            self._evicted = [m for m in self._evicted if not _contains(covers, m)]
+
+
+class HistorySummarizer:
+    """
+    Folds turns that are about to leave the history into a conversation's running
+    summary. Jobs run one at a time on a background thread and generate through a
+    callable the caller provides, which should only use the model when it is idle.
+    The summary is capped at max_summary_tokens so it takes a bounded prompt slot.
+    """
+
+    def __init__(self, max_summary_tokens: int = 512, max_input_tokens: int = 4096):
+        self.max_summary_tokens = max_summary_tokens
+        self.max_input_tokens = max_input_tokens
+        self._jobs: queue.Queue = queue.Queue()
+        self._thread: Optional[threading.Thread] = None
+        self._lock = threading.Lock()
+
+        # Metrics
+        self.submitted = 0
+        self.completed = 0
+        self.failed = 0  # Includes jobs that gave way to interactive requests
+        self.summarized_messages = 0
+        self.input_tokens = 0  # Tokens of the turns folded into summaries
+        self.summary_tokens = 0
+        self.wait_time = 0.0
+        self.generation_time = 0.0
+
+    def submit(self, summary: ConversationSummary, candidates: List[ChatMessage],
+               generate: Callable[[str, int], Optional[str]], count: Callable[[str], int]) -> bool:
+        """
+        Queue a job folding candidates, and any evicted turns not yet summarized, into summary.
+        generate(prompt, max_new_tokens) returns the model's answer or None.
+        """
+        job = summary.begin(candidates)
+        if job is None:
+            return False
+        with self._lock:
+            self.submitted += 1
+            if self._thread is None or not self._thread.is_alive():
+                self._thread = threading.Thread(target=self._run, name="history-summarizer", daemon=True)
+                self._thread.start()
+        self._jobs.put((summary, job, generate, count, time.time()))
+        return True
+
+    def stats(self) -> dict:
+        with self._lock:
+            return {
+                'submitted': self.submitted,
+                'completed': self.completed,
+                'failed': self.failed,
+                'pending': self._jobs.qsize(),
+                'summarized_messages': self.summarized_messages,
+                'input_tokens': self.input_tokens,
+                'summary_tokens': self.summary_tokens,
+                'tokens_saved': self.input_tokens - self.summary_tokens,
+                'compression_ratio': round(self.input_tokens / self.summary_tokens, 2) if self.summary_tokens else 0.0,
+                'avg_wait_time': round(self.wait_time / (self.completed + self.failed), 3)
+                if self.completed + self.failed else 0.0,
+                'avg_summary_time': round(self.generation_time / self.completed, 3) if self.completed else 0.0
+            }
+
+    def _run(self):
+        while True:
+            summary, (previous, messages), generate, count, submitted_at = self._jobs.get()
+            started_at = time.time()
+            text, input_tokens, summary_tokens = None, 0, 0
+            try:
+                prompt, input_tokens = self._prompt(previous, messages, count)
+                text = generate(prompt, self.max_summary_tokens)
+                text = text.strip() if text else None
+                summary_tokens = count(text) if text else 0
+            except Exception as e:
+                print(f"Error summarizing history: {str(e)}")
+            finished_at = time.time()
+
+            with self._lock:
+                self.wait_time += started_at - submitted_at
+                if text:
+                    self.completed += 1
+                    self.summarized_messages += len(messages)
+                    self.input_tokens += input_tokens
+                    self.summary_tokens += summary_tokens
+                    self.generation_time += finished_at - started_at
+                else:
+                    self.failed += 1
+            summary.finish(text or None)
+
+    def _prompt(self, previous: str, messages: List[ChatMessage], count: Callable[[str], int]) -> Tuple[str, int]:
+        """
+        Instruction asking for the updated summary, with the turns cut down to max_input_tokens.
+        Also returns the token count of the turns before they were cut.
+        """
+        turns = [f"{m.role.capitalize()}: {m.content}" for m in messages]
+        tokens = count("\n\n".join(turns))
+        if tokens > self.max_input_tokens:
+            # Shorten every turn by the same share, keeping its start and end
+            share = self.max_input_tokens / tokens
+            turns = [self._shorten(turn, int(len(turn) * share)) for turn in turns]
+
+        parts = [
+            "Summarize the conversation below for your own later reference. Keep decisions, requirements, "
+            "file and function names and open questions; drop code listings and pleasantries. "
+            f"Use at most {self.max_summary_tokens * 3 // 4} words and reply with the summary only."
+        ]
+        if previous:
+            parts.append(f"Summary so far:\n{previous}")
+        parts.append("Conversation:\n" + "\n\n".join(turns))
+        return "\n\n".join(parts), tokens
+
+    @staticmethod
+    def _shorten(text: str, length: int) -> str:
+        if len(text) <= length:
+            return text
+        head = length // 2
+        return text[:head] + "\n[...]\n" + text[len(text) - (length - head):]
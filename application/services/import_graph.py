@@ -0,0 +1,184 @@
+# application/services/import_graph.py
+import ast
+import heapq
+import math
+import os
+import posixpath
+import re
+import threading
+from typing import Dict, List, Set
+
+_JS_EXTENSIONS = {'.js', '.jsx', '.ts', '.tsx', '.mjs', '.cjs'}
+_JVM_EXTENSIONS = {'.java', '.kt', '.scala', '.groovy'}
+_SOURCE_EXTENSIONS = {'.py'} | _JS_EXTENSIONS | _JVM_EXTENSIONS
+_JS_IMPORT = re.compile(r"""(?:\bfrom\s*|\bimport\s*\(?\s*|\brequire\s*\(\s*)['"]([^'"]+)['"]""")
+_JVM_IMPORT = re.compile(r"^\s*import\s+(?:static\s+)?([\w.]+)", re.MULTILINE)
+_IMPORT_COST = 1.0  # Step to a file the current one imports
+_IMPORTER_COST = 1.5  # Step to a file importing the current one
+_HUB_COST = 0.5  # Per doubling of the files a step through another file fans out to
+
+
+def module_key(filename: str) -> str:
+    """Dotted module name of a file path: pkg/mod/__init__.py -> pkg.mod, src/util/index.js -> src.util"""
+    path, ext = os.path.splitext(filename.replace("\\", "/"))
+    if ext.lower() not in _SOURCE_EXTENSIONS:
+        path = filename.replace("\\", "/")  # e.g. "./socket.service" names a module, not an extension
+    parts = [part for part in path.split("/") if part not in ("", ".")]
+    if len(parts) > 1 and parts[-1] in ("__init__", "index"):
+        parts.pop()
+    return ".".join(parts)
+
+
+def _suffixes(key: str) -> List[str]:
+    parts = key.split(".")
+    return [".".join(parts[i:]) for i in range(len(parts))]
+
+
+class ImportGraph:
+    """
+    Module dependency graph of a project's files, from Python, JS/TS and JVM imports.
+    Each file keeps only the module names it imports; they are matched against file
+    paths by dotted suffix when the graph is walked, so files uploaded by basename or
+    in any order still connect. Updating a file costs a parse of that file alone.
+    """
+
+    def __init__(self):
+        self._imports: Dict[str, Set[str]] = {}  # filename -> imported module names
+        self._files_by_suffix: Dict[str, Set[str]] = {}  # key suffix -> files whose key ends with it
+        self._files_by_key: Dict[str, Set[str]] = {}  # full key -> files
+        self._importers_by_suffix: Dict[str, Set[str]] = {}  # suffix of an imported name -> importing files
+        self._importers_by_name: Dict[str, Set[str]] = {}  # imported name -> importing files
+        self._lock = threading.Lock()
+
+    def update_file(self, filename: str, content: str):
+        imports = self._parse(filename, content)
+        with self._lock:
+            self._remove(filename)
+            key = module_key(filename)
+            self._files_by_key.setdefault(key, set()).add(filename)
+            for suffix in _suffixes(key):
+                self._files_by_suffix.setdefault(suffix, set()).add(filename)
+            self._imports[filename] = imports
+            for name in imports:
+                self._importers_by_name.setdefault(name, set()).add(filename)
+                for suffix in _suffixes(name):
+                    self._importers_by_suffix.setdefault(suffix, set()).add(filename)
+
+    def remove_file(self, filename: str):
+        with self._lock:
+            self._remove(filename)
+
+    def related(self, filename: str, max_cost: float = 3.0) -> List[str]:
+        """
+        Files connected to filename by imports in either direction, closest first.
+        Files it imports are closer than files importing it. Going on through another file
+        costs more the more files that step fans out to, so hubs such as a DI container or
+        a module every file imports do not pull in the whole project. At equal cost, files
+        imported by more of the project, which usually define its core types, come first.
+        """
+        with self._lock:
+            if filename not in self._imports:
+                return []
+            costs = {filename: 0.0}
+            heap = [(0.0, filename)]
+            visited = set()
+            while heap:
+                cost, current = heapq.heappop(heap)
+                if current in visited:
+                    continue
+                visited.add(current)
+                for neighbours, step in ((self._dependencies(current), _IMPORT_COST),
+                                         (self._dependents(current), _IMPORTER_COST)):
+                    if not neighbours:
+                        continue
+                    if current != filename:
+                        step += _HUB_COST * math.log2(len(neighbours))
+                    for neighbour in neighbours:
+                        if cost + step <= max_cost and cost + step < costs.get(neighbour, math.inf):
+                            costs[neighbour] = cost + step
+                            heapq.heappush(heap, (cost + step, neighbour))
+
+            del costs[filename]
+            importers = {name: len(self._dependents(name)) for name in costs}
+            return sorted(costs, key=lambda name: (costs[name], -importers[name], name))
+
+    def _dependencies(self, filename: str) -> List[str]:
+        """Files filename imports"""
+        found = set()
+        for name in self._imports.get(filename, ()):
+            # Files whose path ends with the name, else files named like the tail of the name
+            matches = self._files_by_suffix.get(name)
+            if not matches:
+                matches = next((self._files_by_key[s] for s in _suffixes(name) if s in self._files_by_key), None)
+            found.update(matches or ())
+        found.discard(filename)
+        return sorted(found)
+
+    def _dependents(self, filename: str) -> List[str]:
+        """Files importing filename"""
+        key = module_key(filename)
+        found = set(self._importers_by_suffix.get(key, ()))
+        for suffix in _suffixes(key):
+            found.update(self._importers_by_name.get(suffix, ()))
+        found.discard(filename)
+        return sorted(found)
+
+    def _remove(self, filename: str):
+        imports = self._imports.pop(filename, None)
+        if imports is None:
+            return
+        key = module_key(filename)
+        self._discard(self._files_by_key, key, filename)
+        for suffix in _suffixes(key):
+            self._discard(self._files_by_suffix, suffix, filename)
+        for name in imports:
+            self._discard(self._importers_by_name, name, filename)
+            for suffix in _suffixes(name):
+                self._discard(self._importers_by_suffix, suffix, filename)
+
+    @staticmethod
+    def _discard(index: Dict[str, Set[str]], key: str, filename: str):
+        files = index.get(key)
+        if files is not None:
+            files.discard(filename)
+            if not files:
+                del index[key]
+
+    @staticmethod
+    def _parse(filename: str, content: str) -> Set[str]:
+        """Module names a file imports, made absolute where they are relative"""
+        ext = os.path.splitext(filename)[1].lower()
+        directory = posixpath.dirname(filename.replace("\\", "/"))
+        package = [part for part in directory.split("/") if part not in ("", ".")]
+        names = set()
+
+        if ext == '.py':
+            try:
+                tree = ast.parse(content)
+            except (SyntaxError, ValueError):
+                return names
+            for node in ast.walk(tree):
+                if isinstance(node, ast.Import):
+                    names.update(alias.name for alias in node.names)
+                elif isinstance(node, ast.ImportFrom):
+                    base = package[:len(package) - node.level + 1] if node.level else []
+                    module = ".".join(base + ([node.module] if node.module else []))
+                    if module:
+                        names.add(module)
+                    # "from pkg import mod" may name a module as well as an attribute
+                    names.update(f"{module}.{alias.name}" if module else alias.name
+                                 for alias in node.names if alias.name != "*")
+
+        elif ext in _JS_EXTENSIONS:
+            for spec in _JS_IMPORT.findall(content):
+                if spec.startswith("."):
+                    spec = posixpath.normpath(posixpath.join(directory, spec))
+                    # Paths that climb above the uploaded files keep their remaining parts
+                    spec = re.sub(r"^(\.\./)+", "", spec)
+                names.add(module_key(spec))
+
+        elif ext in _JVM_EXTENSIONS:
+            names.update(name for name in _JVM_IMPORT.findall(content))
+
+        names.discard("")
+        return names
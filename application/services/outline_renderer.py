@@ -0,0 +1,178 @@
+# application/services/outline_renderer.py
+import ast
+import os
+import re
+from typing import List, Optional
+
+from application.services.code_chunker import BRACE_EXTENSIONS, scan_braces
+
+# Blocks whose members are listed rather than elided
+_CONTAINER = re.compile(r"\b(class|interface|struct|enum|impl|trait|namespace|object|record)\b")
+# const Module = (function() { ... return {...}; })() and its arrow-function form
+_MODULE_PATTERN = re.compile(r"(^|[=;]\s*)\(\s*(async\s+)?(function\b|\([^()]*\)\s*=>)")
+# module.exports = {...}, export default {...}, const config = {...}
+_OBJECT_LITERAL = re.compile(r"(^|[^=!<>])=$|\bexport\s+default$")
+_MAX_NESTING = 2  # e.g. a module's IIFE and the object it returns
+_MAX_LINE = 120
+
+
+def render_outline(filename: str, content: str) -> Optional[str]:
+    """
+    Skeleton of a source file: class and function headers with the first line of their
+    docstrings and top-level assignments, bodies elided. None when the language is not
+    supported or the outline would not be shorter than the file.
+    """
+    ext = os.path.splitext(filename)[1].lower()
+    lines = content.split("\n")
+    if ext == '.py':
+        outline = _python_outline(content, lines)
+    elif ext in BRACE_EXTENSIONS and ext not in ('.css', '.sql'):
+        outline = _brace_outline(lines, '"' if ext == '.rs' else '"\'`')
+    else:
+        return None
+    if not outline or len(outline) >= len(content):
+        return None
+    return "\n".join(outline)
+
+
+def _clip(line: str) -> str:
+    line = line.rstrip()
+    return line if len(line) <= _MAX_LINE else line[:_MAX_LINE] + " ..."
+
+
+def _start(node: ast.AST) -> int:
+    """First line of a statement, including its decorators (1-based)"""
+    return min([node.lineno] + [d.lineno for d in getattr(node, 'decorator_list', [])])
+
+
+def _python_outline(content: str, lines: List[str]) -> Optional[List[str]]:
+    try:
+        tree = ast.parse(content)
+    except (SyntaxError, ValueError):
+        return None
+    return _python_body(tree.body, lines, "")
+
+
+def _python_body(body: List[ast.stmt], lines: List[str], indent: str) -> List[str]:
+    outline = []
+    for node in body:
+        if isinstance(node, (ast.FunctionDef, ast.AsyncFunctionDef, ast.ClassDef)):
+            # Decorators and the signature, which may span several lines
+            header_end = max(_start(node.body[0]) - 1, node.lineno)
+            outline.extend(_clip(line) for line in lines[_start(node) - 1:header_end]
+                           if line.strip() and not line.lstrip().startswith('#'))
+
+            inner = indent + "    "
+            docstring = ast.get_docstring(node)
+            if docstring and docstring.strip():
+                outline.append(f'{inner}"""{_clip(docstring.strip().splitlines()[0])}"""')
+            if isinstance(node, ast.ClassDef):
+                members = _python_body(node.body, lines, inner)
+                outline.extend(members or [f"{inner}..."])
+            elif _start(node.body[0]) > node.lineno:
+                outline.append(f"{inner}...")
+        elif isinstance(node, (ast.Assign, ast.AnnAssign)):
+            # Constants, fields and type aliases, first line only
+            outline.append(_clip(lines[node.lineno - 1]))
+    return outline
+
+
+def _brace_outline(lines: List[str], quotes: str) -> List[str]:
+    """
+    Top-level declarations and the members of class-like blocks, module IIFEs and object
+    literals (e.g. a module's returned API), other bodies replaced by { ... }
+    """
+    outline = []
+    level = 0
+    open_span = None
+    containers: List[int] = []  # Nesting levels of the open blocks whose members are listed
+    pending = None  # (first line, level) of a signature whose brace is on a later line
+    for i, line in enumerate(lines):
+        before, continued = level, open_span
+        level, open_span, _ = scan_braces(line, level, open_span, quotes)
+        if containers and level < containers[-1]:
+            outline.append(_clip(line))  # Its closing line, e.g. "}" or "})();"
+            containers.pop()
+            pending = None
+            continue
+
+        stripped = line.strip()
+        if pending is not None:
+            start, base = pending
+        elif stripped and before == (containers[-1] if containers else 0) \
+                and not continued and not stripped.startswith(('//', '/*', '*')):
+            start, base = i, before
+        else:
+            continue
+
+        opened = level > base or (level == base and line.rstrip().endswith("}"))  # Also one-line bodies
+        text = " ".join(part.strip() for part in lines[start:i + 1])
+        brace = _body_brace(text, quotes) if opened else None
+        if brace is not None:
+            header = text[:brace].rstrip()
+            indent = lines[start][:len(lines[start]) - len(lines[start].lstrip())]
+            if level > base and len(containers) < _MAX_NESTING and _lists_members(header, base):
+                outline.append(_clip(f"{indent}{header} {{"))
+                containers.append(level)
+            else:
+                outline.append(_clip(f"{indent}{header} {{ ... }}"))
+            pending = None
+        elif level > base:
+            pending = (start, base)  # e.g. parameters over several lines
+        else:
+            pending = None
+            if base > 0 and line.rstrip().endswith((";", ",")):
+                outline.append(_clip(lines[start]))  # Fields and object members
+    return outline
+
+
+def _lists_members(header: str, base: int) -> bool:
+    """Whether a block's members are listed rather than elided"""
+    # The keyword comes before any parameters, unlike in "if (typeof x === 'object')"
+    if _CONTAINER.search(header.split("(")[0]):
+        return True
+    if base == 0:
+        return bool(_MODULE_PATTERN.search(header) or _OBJECT_LITERAL.search(header))
+    # Inside a module only the object it returns is its API; other literals are data
+    return header.endswith("return")
+
+
+def _body_brace(text: str, quotes: str) -> Optional[int]:
+    """
+    Index of the brace opening the body in a declaration's text: the first one outside
+    brackets, so "f(options = {}) {" picks the last one, else the last one left open,
+    as in "(function() {". None when the text has no brace outside strings and comments.
+    """
+    depth = 0  # Open ( and [
+    open_braces: List[int] = []
+    quote = None
+    i = 0
+    while i < len(text):
+        char = text[i]
+        pair = text[i:i + 2]
+        if quote:
+            if char == '\\':
+                i += 1
+            elif char == quote:
+                quote = None
+        elif pair == '//':
+            break
+        elif pair == '/*':
+            end = text.find('*/', i + 2)
+            if end < 0:
+                break
+            i = end + 1
+        elif char in quotes:
+            quote = char
+        elif char in '([':
+            depth += 1
+        elif char in ')]':
+            depth -= 1
+        elif char == '{':
+            if depth == 0 and not open_braces:
+                return i
+            open_braces.append(i)
+        elif char == '}' and open_braces:
+            open_braces.pop()
+        i += 1
+    return open_braces[-1] if open_braces else None
@@ -0,0 +1,177 @@
+# application/services/prompt_truncator.py
+import re
+from dataclasses import dataclass, field, replace
+from typing import Callable, List, Optional, Tuple
+
+from core.domain.models import ChatMessage
+
+# File, chunk and outline sections written by ContextPacker other than the primary file
+FILE_SECTION = re.compile(r"\n(?:File|Outline) - (?P<name>[^\n]+):\n```\n.*?\n```\n", re.DOTALL)
+PROJECT_CONTEXT_MARKER = "Project files:"
+
+
+def _last_section(text: str) -> Optional[re.Match]:
+    """The last file section of text; sections are packed in order of priority"""
+    match = None
+    for match in FILE_SECTION.finditer(text):
+        pass
+    return match
+
+
+def encode_prompt(text: str, tokenizer) -> List[int]:
+    """Token ids of a rendered prompt; templates that write out the BOS token must not get a second one"""
+    has_bos = bool(getattr(tokenizer, 'bos_token', None)) and text.startswith(tokenizer.bos_token)
+    return tokenizer(text, add_special_tokens=not has_bos).input_ids
+
+
+def truncate_middle(token_ids: List[int], max_tokens: int) -> List[int]:
+    """
+    Drop tokens from the middle of an already rendered prompt, keeping the template
+    header at the start and the latest message and generation prompt at the end.
+    Only a safety net; PromptTruncator removes whole messages before rendering.
+    """
+    if len(token_ids) <= max_tokens:
+        return token_ids
+    head = max_tokens // 4
+    tail = max_tokens - head
+    return token_ids[:head] + token_ids[len(token_ids) - tail:]
+
+
+def fit_to_window(token_ids: List[int], window: int, max_new_tokens: int) -> Tuple[List[int], int]:
+    """
+    Keep a rendered prompt and its answer inside the context window.
+    Only prompts that leave no room at all are cut, since the use case already fitted them;
+    returns the prompt and the number of new tokens that still fit.
+    """
+    max_prompt_tokens = window - min(max_new_tokens, 256, window // 2)
+    if len(token_ids) > max_prompt_tokens:
+        print(f"Prompt of {len(token_ids)} tokens exceeds the context window, dropping its middle")
+        token_ids = truncate_middle(token_ids, max_prompt_tokens)
+    return token_ids, min(max_new_tokens, window - len(token_ids))
+
+
+@dataclass
+class TruncationReport:
+    """What had to be removed to fit a prompt into its token budget"""
+    original_tokens: int = 0
+    final_tokens: int = 0
+    budget: int = 0
+    dropped_messages: int = 0
+    dropped_files: List[str] = field(default_factory=list)
+    dropped_latest_tokens: int = 0  # Cut from the middle of the latest message
+
+    @property
+    def truncated(self) -> bool:
+        return self.original_tokens > self.budget
+
+    def to_dict(self) -> dict:
+        return {
+            'original_tokens': self.original_tokens,
+            'final_tokens': self.final_tokens,
+            'budget': self.budget,
+            'dropped_messages': self.dropped_messages,
+            'dropped_files': self.dropped_files,
+            'dropped_latest_tokens': self.dropped_latest_tokens
+        }
+
+    def __str__(self):
+        return (f"prompt {self.original_tokens} -> {self.final_tokens} tokens (budget {self.budget}): "
+                f"dropped {self.dropped_messages} messages, files {self.dropped_files}, "
+                f"{self.dropped_latest_tokens} tokens of the latest message")
+
+
+class PromptTruncator:
+    """
+    Fits a conversation into a token budget by removing the least important parts
+    first, instead of letting the tokenizer cut off the end of the prompt:
+      1. older turns, oldest first, keeping messages that carry project context
+      2. non-primary file sections inside the project context, oldest first
+      3. the remaining older messages
+      4. the middle of the latest message, keeping its start and end
+    The chat template header and generation prompt are rendered around whatever is
+    left, and the latest message is always kept.
+    """
+
+    def fit(self, messages: List[ChatMessage], render: Callable[[List[ChatMessage]], str],
+            count: Callable[[str], int], budget: int,
+            encode: Optional[Callable[[str], List[int]]] = None,
+            decode: Optional[Callable[[List[int]], str]] = None) -> Tuple[str, TruncationReport]:
+        """
+        Render messages into a prompt of at most budget tokens.
+        encode/decode are needed to cut into the latest message as a last resort.
+        """
+        messages = list(messages)
+        prompt = render(messages)
+        tokens = count(prompt)
+        report = TruncationReport(original_tokens=tokens, final_tokens=tokens, budget=budget)
+        if tokens <= budget or not messages:
+            return prompt, report
+
+        def fits() -> bool:
+            nonlocal prompt, tokens
+            prompt = render(messages)
+            tokens = count(prompt)
+            return tokens <= budget
+
+        # 1. Older turns that carry no project context, a question together with its answer
+        i = 0
+        while i < len(messages) - 1:
+            if PROJECT_CONTEXT_MARKER in messages[i].content:
+                i += 1
+                continue
+            removed = messages.pop(i)
+            report.dropped_messages += 1
+            if removed.role == "user" and i < len(messages) - 1 and messages[i].role == "assistant":
+                messages.pop(i)
+                report.dropped_messages += 1
+            if fits():
+                return self._done(prompt, tokens, report)
+
+        # 2. Lower-priority file sections inside older project context
+        for i, message in enumerate(messages[:-1]):
+            while True:
+                match = _last_section(messages[i].content)
+                if match is None:
+                    break
+                content = messages[i].content
+                messages[i] = replace(messages[i], content=content[:match.start()] + content[match.end():])
+                report.dropped_files.append(match.group('name'))
+                if fits():
+                    return self._done(prompt, tokens, report)
+
+        # 3. Whatever older messages are left
+        while len(messages) > 1:
+            messages.pop(0)
+            report.dropped_messages += 1
+            if fits():
+                return self._done(prompt, tokens, report)
+
+        # 4. The latest message itself: its own file sections, then its middle
+        latest = messages[-1]
+        while True:
+            match = _last_section(latest.content)
+            if match is None:
+                break
+            latest = replace(latest, content=latest.content[:match.start()] + latest.content[match.end():])
+            messages[-1] = latest
+            report.dropped_files.append(match.group('name'))
+            if fits():
+                return self._done(prompt, tokens, report)
+
+        if encode is not None and decode is not None:
+            ids = encode(latest.content)
+            excess = tokens - budget
+            keep = max(len(ids) - excess - 16, 0)  # A little slack for the marker and re-tokenization
+            head, tail = keep // 2, keep - keep // 2
+            marker = f"\n[... {len(ids) - keep} tokens omitted ...]\n"
+            content = decode(ids[:head]) + marker + (decode(ids[len(ids) - tail:]) if tail else "")
+            messages[-1] = replace(latest, content=content)
+            report.dropped_latest_tokens = len(ids) - keep
+            fits()
+
+        return self._done(prompt, tokens, report)
+
+    @staticmethod
+    def _done(prompt: str, tokens: int, report: TruncationReport) -> Tuple[str, TruncationReport]:
+        report.final_tokens = tokens
+        return prompt, report
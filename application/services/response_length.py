@@ -0,0 +1,30 @@
+# application/services/response_length.py
+import re
+
+# Requests that usually produce code listings or long rewrites
+_LONG_TASKS = re.compile(
+    r"\b(refactor|rewrite|re-write|implement|generate|convert|migrate|port|translate|write|create|"
+    r"add tests?|whole|entire|all (the )?files|complete code|full code)\b",
+    re.IGNORECASE
+)
+# Questions that are usually answered in a few sentences
+_SHORT_TASKS = re.compile(
+    r"^\s*(what|why|where|which|who|when|is|are|does|do|can|could|should|how many|how much)\b",
+    re.IGNORECASE
+)
+
+SHORT_RESPONSE_TOKENS = 150
+DEFAULT_RESPONSE_TOKENS = 400
+LONG_RESPONSE_TOKENS = 1500
+
+
+def expected_response_tokens(message: str, with_file: bool = False) -> int:
+    """
+    Rough prediction of how long the answer to a user message will be, from the task it asks for.
+    Only used to order requests, so being wrong costs some latency, never correctness.
+    """
+    if with_file or _LONG_TASKS.search(message):
+        return LONG_RESPONSE_TOKENS
+    if _SHORT_TASKS.search(message) and len(message.split()) <= 40:
+        return SHORT_RESPONSE_TOKENS
+    return DEFAULT_RESPONSE_TOKENS
@@ -1,6 +1,13 @@
 # application/use_cases/conversation.py
-from core.domain.models import ChatMessage, AnalysisConfig, ProjectFile
-from typing import List, Optional, Dict, Set
+from application.services.context_packer import ContextPacker, model_context_window
+from application.services.history_summarizer import ConversationSummary, HistorySummarizer
+from application.services.import_graph import ImportGraph
+from application.services.outline_renderer import render_outline
+from application.services.prompt_truncator import PromptTruncator, TruncationReport
+from application.services.response_length import expected_response_tokens
+from core.domain.models import ChatMessage, AnalysisConfig, CodeChunk, ProjectFile
+from core.ports.context_retriever_port import ContextRetrieverPort
+from typing import List, Optional, Dict, Set, Tuple
 
 
 class ConversationUseCase:
@@ -8,11 +15,22 @@ class ConversationUseCase:
                  output_port,
                  response_generator,
                  prompt_builder,
-                 config: AnalysisConfig):
+                 config: AnalysisConfig,
+                 context_packer: Optional[ContextPacker] = None,
+                 prompt_truncator: Optional[PromptTruncator] = None,
+                 history_summarizer: Optional[HistorySummarizer] = None,
+                 context_retriever: Optional[ContextRetrieverPort] = None):
         self.output_port = output_port
         self.response_generator = response_generator
         self.prompt_builder = prompt_builder
         self.config = config
+        self.context_packer = context_packer or ContextPacker()
+        self.prompt_truncator = prompt_truncator or PromptTruncator()
+        self.history_summarizer = history_summarizer
+        self.context_retriever = context_retriever  # Picks the project code relevant to a message
+        self.summary = ConversationSummary()  # Turns that left the history, in the prompt as a summary
+        self._summarized: Optional[Tuple[ChatMessage, str, ChatMessage]] = None  # First message with the summary
+        self.last_truncation: Optional[TruncationReport] = None  # Set when the last prompt had to be cut
         self.history: List[ChatMessage] = []
         self.model = None
         self.tokenizer = None
@@ -21,6 +39,11 @@ class ConversationUseCase:
         self.project_files: Dict[str, ProjectFile] = {}  # filename -> ProjectFile
         self.primary_file: Optional[str] = None  # The file currently being focused on
         self.mentioned_files: Set[str] = set()  # Track which files have been mentioned recently
+        self.import_graph = ImportGraph()  # Which project files import which
+        self.project_version = 0  # Bumped whenever the project context would change
+        self._context_text: Optional[Tuple[int, str]] = None  # (version, packed context) materialized once
+        self._materialized: Optional[Tuple[ChatMessage, int, ChatMessage]] = None  # Message with context inlined
+        self._context_coverage: Optional[Tuple[int, Set[str], Set[tuple]]] = None  # Files and chunks in the context
 
         # Connect the response generator to the output port if possible
         if hasattr(self.response_generator, 'set_output_adapter'):
@@ -29,24 +52,34 @@ class ConversationUseCase:
     def initialize_with_code(self, code: str, task: str = "Refactor according to SOLID principles",
                              filename: str = "main.py"):
         """Initialize conversation with code content"""
+        # Add as project file; the message references it instead of carrying a copy
+        self.add_project_file(filename, code)
+        self.set_primary_file(filename)
+
         initial_message = ChatMessage(
             role="user",
-            content=f"{task}:\n```\n{code}\n```\n"
+            content=f"{task}.",
+            context_version=self.project_version
         )
         self._add_to_history(initial_message)
 
-        # Add as project file
-        self.add_project_file(filename, code)
-        self.primary_file = filename
-
         return initial_message
 
     def add_project_file(self, filename: str, content: str, description: Optional[str] = None):
         """Add or update a file in the project"""
+        existing = self.project_files.get(filename)
+        changed = existing is None or existing.content != content
+        if changed:
+            self.project_version += 1
+            self.import_graph.update_file(filename, content)
+            if self.context_retriever is not None:
+                self.context_retriever.index_file(filename, content)
+
         self.project_files[filename] = ProjectFile(
             filename=filename,
             content=content,
-            description=description or f"File: {filename}"
+            description=description or f"File: {filename}",
+            outline=render_outline(filename, content) if changed else existing.outline
         )
         self.mentioned_files.add(filename)
 
@@ -59,6 +92,10 @@ class ConversationUseCase:
         if filename in self.project_files:
             del self.project_files[filename]
             self.mentioned_files.discard(filename)
+            self.project_version += 1
+            self.import_graph.remove_file(filename)
+            if self.context_retriever is not None:
+                self.context_retriever.remove_file(filename)
 
             # If we removed the primary file, select a new one if available
             if self.primary_file == filename:
@@ -69,6 +106,8 @@ class ConversationUseCase:
     def set_primary_file(self, filename: str) -> bool:
         """Set the file to focus on"""
         if filename in self.project_files:
+            if self.primary_file != filename:
+                self.project_version += 1  # A different file is shown in full
             self.primary_file = filename
             self.mentioned_files.add(filename)
             return True
@@ -79,59 +118,191 @@ class ConversationUseCase:
         self.model = model
         self.tokenizer = tokenizer
 
-    def _build_project_context(self, max_files: int = 3, token_limit: int = 6000) -> str:
+    def _context_budget(self) -> int:
+        """Tokens the project context may use in a prompt"""
+        budget = self.config.max_project_context_tokens
+        window = model_context_window(self.model, self.tokenizer)
+        if window:
+            # Leave the rest of the window for the conversation and the answer
+            budget = min(budget, int(window * self.config.max_context_fraction))
+        return budget
+
+    def _build_project_context(self) -> str:
         """Build context string with project file information"""
         if not self.project_files:
             return ""
+        max_files = self.config.max_files_per_message
 
-        # Start with the primary file if it exists
-        selected_files = []
+        # Rank the files: the primary file, the files it imports or is imported by (closest first),
+        # recently mentioned files, then the rest
+        ranked = []
+        related = []
         if self.primary_file:
-            selected_files.append(self.primary_file)
-
-        # Add recently mentioned files that aren't already included
-        for filename in self.mentioned_files:
-            if filename != self.primary_file and len(selected_files) < max_files:
-                selected_files.append(filename)
-
-        # Add other files up to the limit
-        for filename in self.project_files:
-            if filename not in selected_files and len(selected_files) < max_files:
-                selected_files.append(filename)
-
-        # Build context with files
-        context_parts = ["Project files:"]
-        total_chars = 0
-
-        # Add primary file with full content
-        if self.primary_file:
-            primary = self.project_files[self.primary_file]
-            primary_content = f"\nPrimary file - {primary.filename}:\n```\n{primary.content}\n```\n"
-            context_parts.append(primary_content)
-            total_chars += len(primary_content)
-
-        # Add project structure with all filenames
-        file_list = "\nProject structure:\n" + "\n".join([f"- {f}" for f in self.project_files.keys()])
-        context_parts.append(file_list)
-        total_chars += len(file_list)
-
-        # Add content from other selected files if we have space
-        for filename in selected_files:
-            if filename == self.primary_file:
-                continue  # Already added
-
-            file = self.project_files[filename]
-            file_content = f"\nFile - {file.filename}:\n```\n{file.content}\n```\n"
-
-            # Check if adding would exceed token limit (rough approximation)
-            if total_chars + len(file_content) > token_limit:
-                context_parts.append(f"\nNote: Additional files exist but were omitted for brevity.")
-                break
-
-            context_parts.append(file_content)
-            total_chars += len(file_content)
+            related = self.import_graph.related(self.primary_file)
+            ranked.append(self.primary_file)
+            ranked.extend(related)
+        for filename in list(self.mentioned_files) + list(self.project_files):
+            if filename not in ranked:
+                ranked.append(filename)
+        selected_files = ranked[:max_files]
+
+        # With a retriever, the code relevant to the message replaces whole files picked by recency;
+        # the primary file's neighbours in the import graph still fill the room the chunks leave
+        chunks = self._retrieve(self._context_message())
+        if chunks:
+            selected_files = [filename for filename in selected_files
+                              if filename == self.primary_file or filename in related]
+
+        # Fill the token budget with the selected files, then outlines of the others in rank order
+        packed = self.context_packer.pack(self.project_files, self.primary_file, selected_files,
+                                          self._context_budget(), self.tokenizer, chunks=chunks,
+                                          outline_files=ranked)
+        if packed.truncated or packed.omitted:
+            print(f"Project context: {packed.token_count}/{packed.budget} tokens, "
+                  f"truncated {packed.truncated}, omitted {packed.omitted}")
+        self._context_coverage = (self.project_version, set(packed.included),
+                                  {(chunk.filename, chunk.start_line) for chunk in packed.chunks})
+        return packed.text
+
+    def _retrieve(self, message: Optional[ChatMessage]) -> List[CodeChunk]:
+        """Project chunks most relevant to message, most relevant first"""
+        if self.context_retriever is None or message is None:
+            return []
+        return self.context_retriever.search(message.content, self.config.retrieval_top_k)
+
+    def _context_covers(self, message: ChatMessage) -> bool:
+        """Whether the current project context holds the chunks most relevant to message"""
+        if self.context_retriever is None:
+            return True
+        coverage = self._context_coverage
+        if coverage is None or coverage[0] != self.project_version:
+            return True  # Not built yet; it will be built for this message
+        _, files, chunks = coverage
+        # The best half of the hits decides; lower-ranked ones are often noise
+        relevant = self._retrieve(message)[:max(self.config.retrieval_top_k // 2, 1)]
+        return all(chunk.filename in files or (chunk.filename, chunk.start_line) in chunks for chunk in relevant)
+
+    def _project_context(self) -> str:
+        """Packed project context for the current version, built once per version"""
+        if self._context_text is None or self._context_text[0] != self.project_version:
+            self._context_text = (self.project_version, self._build_project_context())
+        return self._context_text[1]
+
+    def _context_message(self) -> Optional[ChatMessage]:
+        """The history message that references the current project version, if any"""
+        for message in reversed(self.history):
+            if message.context_version == self.project_version:
+                return message
+        return None
 
-        return "\n".join(context_parts)
+    def _prompt_messages(self) -> List[ChatMessage]:
+        """
+        History as sent to the model. The project context is inlined once, in front of the
+        message referencing the current version; references to older versions are dropped.
+        """
+        messages = list(self.history)
+        current = self._context_message() if self.project_files else None
+        if current is not None:
+            cached = self._materialized
+            if cached is None or cached[0] is not current or cached[1] != self.project_version:
+                # Put the project context first so sessions sharing a project share the prompt prefix
+                materialized = ChatMessage(role=current.role,
+                                           content=f"{self._project_context()}\n\n{current.content}")
+                self._materialized = cached = (current, self.project_version, materialized)
+            messages = [cached[2] if message is current else message for message in messages]
+
+        # The summary of evicted turns leads the first message
+        summary = self.summary.text
+        if summary and messages:
+            first = messages[0]
+            cached = self._summarized
+            if cached is None or cached[0] is not first or cached[1] is not summary:
+                materialized = ChatMessage(role=first.role,
+                                           content=f"Summary of the earlier conversation:\n{summary}\n\n{first.content}")
+                self._summarized = cached = (first, summary, materialized)
+            messages[0] = cached[2]
+        return messages
+
+    def _build_prompt(self) -> Tuple[str, Optional[List[int]]]:
+        """
+        Render the history into a prompt that leaves room in the context window for the answer.
+        Returns the prompt and its token ids when the prompt builder provides them.
+        """
+        def render(messages):
+            return self.prompt_builder.build_prompt(messages, self.tokenizer)
+
+        self.last_truncation = None
+        window = model_context_window(self.model, self.tokenizer)
+        budget = window - self.config.min_response_tokens if window else None
+
+        # Incremental builders reuse each message's cached tokens
+        if hasattr(self.prompt_builder, 'build_prompt_ids'):
+            if budget:
+                self._trim_history(budget)
+            prompt, prompt_token_ids = self.prompt_builder.build_prompt_ids(self._prompt_messages(), self.tokenizer)
+            if budget is None or len(prompt_token_ids) <= budget:
+                return prompt, prompt_token_ids
+
+        if budget is None:
+            return render(self._prompt_messages()), None
+
+        # Still too long (e.g. one huge message): cut it down by structure
+        prompt, report = self.prompt_truncator.fit(
+            self._prompt_messages(),
+            render,
+            count=lambda text: len(self.tokenizer(text).input_ids),
+            budget=budget,
+            encode=lambda text: self.tokenizer(text, add_special_tokens=False).input_ids,
+            decode=lambda ids: self.tokenizer.decode(ids, skip_special_tokens=True)
+        )
+        if report.truncated:
+            print(f"Prompt truncated: {report}")
+            self.last_truncation = report
+        return prompt, None
+
+    def _history_target(self, budget: int) -> int:
+        """Prompt tokens history is trimmed down to, leaving the summary its slot"""
+        # Trim well below the budget so the kept prefix, and the KV caches built on it,
+        # stay valid for several turns instead of shifting every turn
+        target = int(budget * self.config.history_low_water)
+        if self._summarizing():
+            target -= self.config.summary_max_tokens
+        return target
+
+    def _overflow(self, counts: List[int], total: int, target: int) -> int:
+        """Number of oldest messages to drop to bring total down to target, whole turns at a time"""
+        dropped = 0
+        while dropped < len(self.history) - 1 and total > target:
+            total -= counts[dropped]
+            dropped += 1
+            # Never leave an answer without its question at the start
+            if self.history[dropped - 1].role == "user" and dropped < len(self.history) - 1 \
+                    and self.history[dropped].role == "assistant":
+                total -= counts[dropped]
+                dropped += 1
+        return dropped
+
+    def _trim_history(self, budget: int):
+        """Drop the oldest turns once the history no longer fits the token budget"""
+        counts = self.prompt_builder.count_tokens(self._prompt_messages(), self.tokenizer)
+        if counts is None:
+            return  # Left to the prompt truncator
+        total = sum(counts)
+        if total <= budget:
+            return
+
+        dropped = self._overflow(counts, total, self._history_target(budget))
+        evicted = self.history[:dropped]
+        del self.history[:dropped]
+        self.summary.evict(evicted)
+        total -= sum(counts[:dropped])
+        print(f"Trimmed {dropped} messages from history, {total} of {budget} prompt tokens used")
+        self._reattach_context()
+
+    def _reattach_context(self):
+        """After an eviction took the project context with it, show it again before the latest message"""
+        if self.project_files and self.history and self._context_message() is None:
+            self.history[-1].context_version = self.project_version
 
     def handle_message(self, user_message: str, code_file: Optional[Dict] = None, model_loader=None) -> str:
         """
@@ -151,24 +322,12 @@ class ConversationUseCase:
 
             # Add the file to our project
             self.add_project_file(filename, content)
-            self.primary_file = filename  # Focus on the new file
+            self.set_primary_file(filename)  # Focus on the new file
 
             # Update message to mention the new file
             message_content = f"{user_message}\n\nI've uploaded a new file: {filename}"
 
-        # Check if we need to refresh context about the project
-        needs_context = not any("Project files:" in msg.content for msg in self.history[-2:])
-
-        if self.project_files and needs_context:
-            # Add project context to the message
-            project_context = self._build_project_context()
-            message_with_context = f"{message_content}\n\n{project_context}"
-            self._add_to_history(ChatMessage(role="user", content=message_with_context))
-        else:
-            # No project context needed or available
-            self._add_to_history(ChatMessage(role="user", content=message_content))
-
-        # Load model if not available
+        # Load model if not available; packing the project context needs its tokenizer
         if self.model is None or self.tokenizer is None:
             if model_loader:
                 self.model, self.tokenizer = model_loader.load_model_and_tokenizer()
@@ -176,18 +335,34 @@ class ConversationUseCase:
                 raise ValueError(
                     "Model and tokenizer not set. Either call set_model_and_tokenizer() or provide model_loader")
 
+        # Pack the context again for this message when the code it is about is not shown
+        message = ChatMessage(role="user", content=message_content)
+        if self.project_files and self._context_message() is not None and not self._context_covers(message):
+            self.project_version += 1
+
+        # Reference the project context only when this version is not in the history yet
+        if self.project_files and self._context_message() is None:
+            message.context_version = self.project_version
+        self._add_to_history(message)
+
         # Build prompt and generate response
-        prompt = self.prompt_builder.build_prompt(self.history, self.tokenizer)
+        prompt, prompt_token_ids = self._build_prompt()
 
         # Make sure response generator has output adapter before generating
         if hasattr(self.response_generator, 'set_output_adapter'):
             self.response_generator.set_output_adapter(self.output_port)
 
+        # Let the scheduler serve quick questions ahead of heavy jobs
+        if hasattr(self.response_generator, 'set_expected_tokens'):
+            self.response_generator.set_expected_tokens(
+                expected_response_tokens(user_message, with_file=code_file is not None))
+
         # Generate the response (this will stream chunks if a streaming adapter is used)
         response = self.response_generator.generate_response(
             prompt,
             self.model,
-            self.tokenizer
+            self.tokenizer,
+            prompt_token_ids=prompt_token_ids
         )
 
         # Add the complete response to history
@@ -196,9 +371,41 @@ class ConversationUseCase:
         # Update mentioned files based on response
         self._update_mentioned_files(response)
 
+        # Summarize the turns the next trim will evict while the user reads the answer
+        self._summarize_ahead()
+
         # Return the complete response (important for history)
         return response
 
+    def _summarizing(self) -> bool:
+        return self.history_summarizer is not None and self.config.summary_max_tokens > 0 \
+            and hasattr(self.response_generator, 'generate_background')
+
+    def _summarize_ahead(self):
+        """Queue a background summary of the turns about to leave the history"""
+        if not self._summarizing() or self.model is None:
+            return
+
+        # Turns the hard cap drops within the next exchange
+        ahead = max(len(self.history) + 2 - self.config.max_history_length, 0)
+
+        # Turns already past the point the next token-budget trim cuts back to
+        window = model_context_window(self.model, self.tokenizer)
+        if window and hasattr(self.prompt_builder, 'count_tokens'):
+            counts = self.prompt_builder.count_tokens(self._prompt_messages(), self.tokenizer)
+            if counts is not None:
+                budget = window - self.config.min_response_tokens
+                ahead = max(ahead, self._overflow(counts, sum(counts), self._history_target(budget)))
+
+        model, tokenizer = self.model, self.tokenizer
+
+        def generate(prompt: str, max_new_tokens: int) -> Optional[str]:
+            text = self.prompt_builder.build_prompt([ChatMessage(role="user", content=prompt)], tokenizer)
+            return self.response_generator.generate_background(text, model, tokenizer, max_new_tokens)
+
+        self.history_summarizer.submit(self.summary, self.history[:min(ahead, len(self.history) - 2)], generate,
+                                       lambda text: self.context_packer.count_tokens(text, tokenizer))
+
     def _update_mentioned_files(self, text: str):
         """Update the mentioned files set based on text content"""
         # Keep only 5 most recently mentioned files
@@ -226,6 +433,9 @@ class ConversationUseCase:
 
     def _add_to_history(self, message: ChatMessage):
         """Add a message to the conversation history, maintaining max length"""
-        if len(self.history) >= self.config.max_history_length:
-            self.history.pop(0)
-        self.history.append(message)
\ No newline at end of file
+        evict = len(self.history) >= self.config.max_history_length
+        if evict:
+            self.summary.evict([self.history.pop(0)])
+        self.history.append(message)
+        if evict:
+            self._reattach_context()
\ No newline at end of file
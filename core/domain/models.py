@@ -1,5 +1,5 @@
 # core/domain/models.py
-from dataclasses import dataclass
+from dataclasses import dataclass, field
 from typing import Optional
 
 
@@ -7,6 +7,10 @@ from typing import Optional
 class ChatMessage:
     role: str
     content: str
+    # Version of the project context shown before this message; the files themselves live in the project
+    context_version: Optional[int] = None
+    # Rendered template segment and its token ids, filled in by the prompt builder
+    render_cache: Optional[tuple] = field(default=None, repr=False, compare=False)
 
 
 @dataclass
@@ -14,6 +18,17 @@ class ProjectFile:
     filename: str
     content: str
     description: Optional[str] = None
+    # Signatures and docstring first lines with bodies elided, shown for files not included in full
+    outline: Optional[str] = None
+
+
+@dataclass
+class CodeChunk:
+    """A range of lines of a project file, the unit of retrieval"""
+    filename: str
+    start_line: int  # 1-based, inclusive
+    end_line: int
+    text: str
 
 
 @dataclass
@@ -21,4 +36,9 @@ class AnalysisConfig:
     max_history_length: int = 10
     default_temp: float = 0.7
     max_project_context_tokens: int = 6000
-    max_files_per_message: int = 3
\ No newline at end of file
+    max_files_per_message: int = 3
+    max_context_fraction: float = 0.5  # Share of the model's context window project files may use
+    min_response_tokens: int = 1024  # Context window kept free for the answer
+    history_low_water: float = 0.75  # Trim history to this share of its token budget once it overflows
+    summary_max_tokens: int = 512  # Prompt slot for the summary of evicted turns; 0 disables summaries
+    retrieval_top_k: int = 8  # Chunks of project files retrieved per message when a retriever is configured
\ No newline at end of file
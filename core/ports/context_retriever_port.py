@@ -0,0 +1,19 @@
+# core/ports/context_retriever_port.py
+from abc import ABC, abstractmethod
+from typing import List
+from core.domain.models import CodeChunk
+
+class ContextRetrieverPort(ABC):
+    @abstractmethod
+    def index_file(self, filename: str, content: str):
+        """Add a project file to the index, replacing an earlier version of it"""
+        pass
+
+    @abstractmethod
+    def remove_file(self, filename: str):
+        pass
+
+    @abstractmethod
+    def search(self, query: str, top_k: int) -> List[CodeChunk]:
+        """The top_k chunks most relevant to query, most relevant first"""
+        pass
\ No newline at end of file
@@ -1,9 +1,13 @@
 # core/ports/model_loader_port.py
 from abc import ABC, abstractmethod
-from transformers import AutoModelForCausalLM, AutoTokenizer
-from typing import Tuple
+from typing import Any, Tuple
 
 class ModelLoaderPort(ABC):
     @abstractmethod
-    def load_model_and_tokenizer(self) -> Tuple[AutoModelForCausalLM, AutoTokenizer]:
+    def load_model_and_tokenizer(self) -> Tuple[Any, Any]:
+        """
+        Return the backend's model handle and a tokenizer.
+        The tokenizer provides chat_template, apply_chat_template() and is callable
+        on text returning input_ids, like a HuggingFace tokenizer.
+        """
         pass
\ No newline at end of file
@@ -1,10 +1,9 @@
 # core/ports/prompt_builder_port.py
 from abc import ABC, abstractmethod
-from typing import List
+from typing import Any, List
 from core.domain.models import ChatMessage
-from transformers import AutoTokenizer
 
 class PromptBuilderPort(ABC):
     @abstractmethod
-    def build_prompt(self, history: List[ChatMessage], tokenizer: AutoTokenizer) -> str:
+    def build_prompt(self, history: List[ChatMessage], tokenizer: Any) -> str:
         pass
\ No newline at end of file
@@ -1,8 +1,13 @@
 # core/ports/response_generator_port.py
 from abc import ABC, abstractmethod
-from transformers import AutoModelForCausalLM, AutoTokenizer
+from typing import Any, List, Optional
 
 class ResponseGeneratorPort(ABC):
     @abstractmethod
-    def generate_response(self, prompt: str, model: AutoModelForCausalLM, tokenizer: AutoTokenizer) -> str:
+    def generate_response(self, prompt: str, model: Any, tokenizer: Any,
+                          prompt_token_ids: Optional[List[int]] = None) -> str:
+        """
+        Generate a response to prompt with a model and tokenizer from the matching ModelLoaderPort.
+        prompt_token_ids, when given, are the already tokenized prompt and are used as-is.
+        """
         pass
\ No newline at end of file
@@ -78,6 +78,8 @@ class APIService {
       'assistant_chunk',
       'assistant_response',
       'assistant_response_complete',
+      'queue_status',
+      'server_busy',
       'project_update_result',
       'project_files',
       'error'
@@ -8,9 +8,36 @@ def main():
     container = Container()
     container.config.from_dict({
         "context": "cli",
-        "max_history_length": 10,
+        "max_history_length": 100,  # Hard cap; history is trimmed by its token budget first
         "default_temp": 0.7,
-        "model_name": "deepseek-ai/deepseek-coder-6.7b-instruct"
+        "summary_max_tokens": 512,  # Summary of evicted turns kept in the prompt; 0 disables it
+        "retriever": "embedding",  # "embedding", "bm25" (no model needed) or "none"
+        "retrieval_model_name": "sentence-transformers/all-MiniLM-L6-v2",  # CPU encoder for "embedding"
+        "retrieval_top_k": 8,  # Relevant chunks of project files packed per message
+        "backend": "huggingface",  # "huggingface" or "llama_cpp"
+        "model_name": "deepseek-ai/deepseek-coder-6.7b-instruct",
+        "quantization": "none",  # "int8_dynamic" for CPU-only machines
+        "max_batch_size": 8,
+        "time_slice_ms": 2000,  # Run time after which a full batch makes room for waiting requests; 0 never
+        "prefill_chunk_tokens": 512,  # Prompt tokens per prefill forward pass; 0 prefills whole prompts
+        "kv_cache_budget_mb": None,  # Key/value memory for running requests and cached turns; None uses a share of free memory
+        "prefix_cache_mb": 4096,  # Shared prompt prefixes; ~8k tokens at 512 KB/token, above the 6000-token project context budget
+        "session_cache_mb": 4096,  # Key/values kept between turns across all sessions; least recently used go first
+        "response_cache": False,  # Replay answers to identical prompts; off since sampled answers vary
+        "response_cache_mb": 64,
+        "response_cache_dir": "cache/responses",  # None keeps the cache in memory only
+        "response_cache_disk_mb": 512,
+        "speculative_mode": "prompt_lookup",  # "draft", "prompt_lookup" or "none"
+        "draft_model_name": None,  # Needed for "draft", e.g. "deepseek-ai/deepseek-coder-1.3b-instruct"
+        "num_speculative_tokens": 4,
+        "prompt_lookup_tokens": 10,
+        "stream_timeout": 120,  # Seconds without output before a generation is abandoned
+        "stream_flush_interval_ms": 50,  # Coalesce streamed text into one frame per interval...
+        "stream_flush_bytes": 256,  # ...or per this many bytes; 0 and 0 send every token
+        "gguf_model_path": "models/deepseek-coder-6.7b-instruct.Q4_K_M.gguf",  # Used by "llama_cpp"
+        "gguf_n_ctx": 16384,
+        "gguf_n_threads": None,  # Defaults to the number of CPU cores
+        "gguf_n_gpu_layers": 0
     })
 
     parser = argparse.ArgumentParser(description='AI Code Assistant')
@@ -32,6 +59,9 @@ def main():
     # Set model and tokenizer directly
     conversation_uc.set_model_and_tokenizer(model, tokenizer)
 
+    # Keep past key/values between turns so each turn only prefills new tokens
+    conversation_uc.response_generator.set_session_cache(container.session_kv_caches().create())
+
     try:
         # 1. Read code file
         code = file_handler.read_file(args.file)
@@ -0,0 +1,133 @@
+# entrypoints/quantization_report.py
+import argparse
+import gc
+import json
+import time
+
+import torch
+from transformers import AutoTokenizer
+
+from infrastructure.adapters.model_loaders.model_manager import (
+    load_causal_lm, QUANTIZATION_NONE, QUANTIZATION_INT8_DYNAMIC
+)
+
+DEFAULT_PROMPTS = [
+    "Write a Python function that returns the n-th Fibonacci number iteratively.",
+    "Refactor this class so it follows the single responsibility principle:\n"
+    "class Report:\n    def load(self, path): ...\n    def render_html(self): ...\n    def send_email(self, to): ...",
+    "Explain what a race condition is and show how a threading.Lock prevents one."
+]
+
+
+def _resident_memory_mb() -> float:
+    """Resident set size of this process in MB"""
+    try:
+        with open('/proc/self/status') as status:
+            for line in status:
+                if line.startswith('VmRSS:'):
+                    return int(line.split()[1]) / 1024
+    except OSError:
+        pass
+    import resource
+    return resource.getrusage(resource.RUSAGE_SELF).ru_maxrss / 1024
+
+
+def _evaluate(model, tokenizer, reference_ids, prompts, max_new_tokens):
+    """Measure accuracy on the reference text and speed on the prompts"""
+    with torch.inference_mode():
+        # Accuracy: perplexity and top-1 predictions over the reference text
+        ids = torch.tensor([reference_ids], device=model.device)
+        logits = model(input_ids=ids).logits[0, :-1].float()
+        log_probs = torch.log_softmax(logits, dim=-1)
+        nll = -log_probs.gather(-1, ids[0, 1:].unsqueeze(-1)).mean().item()
+        top1 = logits.argmax(dim=-1).tolist()
+
+        # Speed: prefill and greedy decode on each prompt
+        prefill_tokens, prefill_time = 0, 0.0
+        decode_tokens, decode_time = 0, 0.0
+        outputs = []
+        for prompt in prompts:
+            messages = [{"role": "user", "content": prompt}]
+            text = tokenizer.apply_chat_template(messages, tokenize=False, add_generation_prompt=True) \
+                if tokenizer.chat_template is not None else prompt
+            inputs = tokenizer(text, return_tensors="pt").to(model.device)
+
+            start = time.time()
+            model(**inputs)
+            prefill_time += time.time() - start
+            prefill_tokens += inputs.input_ids.shape[1]
+
+            start = time.time()
+            generated = model.generate(**inputs, max_new_tokens=max_new_tokens, do_sample=False,
+                                       pad_token_id=tokenizer.pad_token_id or tokenizer.eos_token_id)
+            decode_time += time.time() - start
+            new_tokens = generated[0, inputs.input_ids.shape[1]:].tolist()
+            decode_tokens += len(new_tokens)
+            outputs.append(new_tokens)
+
+    return {
+        'perplexity': round(float(torch.exp(torch.tensor(nll))), 3),
+        'prefill_tokens_per_second': round(prefill_tokens / prefill_time, 2) if prefill_time else 0.0,
+        'decode_tokens_per_second': round(decode_tokens / decode_time, 2) if decode_time else 0.0
+    }, top1, outputs
+
+
+def _run_mode(model_name, quantization, tokenizer, reference_ids, prompts, max_new_tokens):
+    gc.collect()
+    memory_before = _resident_memory_mb()
+    start = time.time()
+    model = load_causal_lm(model_name, quantization)
+    load_time = time.time() - start
+    memory_used = _resident_memory_mb() - memory_before
+
+    metrics, top1, outputs = _evaluate(model, tokenizer, reference_ids, prompts, max_new_tokens)
+    metrics.update({
+        'load_time_seconds': round(load_time, 1),
+        'model_memory_mb': round(memory_used, 1)
+    })
+
+    del model
+    gc.collect()
+    return metrics, top1, outputs
+
+
+def main():
+    parser = argparse.ArgumentParser(description='Compare int8 dynamic quantization against bf16')
+    parser.add_argument('--model', type=str, default="deepseek-ai/deepseek-coder-6.7b-instruct")
+    parser.add_argument('--reference-file', type=str, default="application/use_cases/conversation.py",
+                        help='Text used to measure perplexity and top-1 agreement')
+    parser.add_argument('--eval-tokens', type=int, default=1024)
+    parser.add_argument('--max-new-tokens', type=int, default=64)
+    parser.add_argument('--output', type=str, help='Optional path to write the report as JSON')
+    args = parser.parse_args()
+
+    tokenizer = AutoTokenizer.from_pretrained(args.model)
+    with open(args.reference_file, 'r', encoding='utf-8') as file:
+        reference_ids = tokenizer(file.read()).input_ids[:args.eval_tokens]
+
+    report = {}
+    predictions = {}
+    generations = {}
+    for quantization in (QUANTIZATION_NONE, QUANTIZATION_INT8_DYNAMIC):
+        print(f"Evaluating {args.model} with quantization '{quantization}'...")
+        report[quantization], predictions[quantization], generations[quantization] = _run_mode(
+            args.model, quantization, tokenizer, reference_ids, DEFAULT_PROMPTS, args.max_new_tokens)
+
+    # How often the quantized model agrees with bf16
+    baseline, quantized = predictions[QUANTIZATION_NONE], predictions[QUANTIZATION_INT8_DYNAMIC]
+    report['top1_agreement'] = round(sum(a == b for a, b in zip(baseline, quantized)) / len(baseline), 4)
+    report['greedy_output_match'] = round(sum(
+        a == b for a, b in zip(generations[QUANTIZATION_NONE], generations[QUANTIZATION_INT8_DYNAMIC])
+    ) / len(DEFAULT_PROMPTS), 4)
+    bf16_memory = report[QUANTIZATION_NONE]['model_memory_mb']
+    report['memory_ratio'] = round(report[QUANTIZATION_INT8_DYNAMIC]['model_memory_mb'] / bf16_memory, 3) \
+        if bf16_memory else None
+
+    print(json.dumps(report, indent=2))
+    if args.output:
+        with open(args.output, 'w', encoding='utf-8') as file:
+            json.dump(report, file, indent=2)
+
+
+if __name__ == '__main__':
+    main()
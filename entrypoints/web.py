@@ -10,6 +10,7 @@ from flask_socketio import SocketIO, emit, join_room
 from infrastructure.adapters.chat_output.web_adapter import WebChatAdapter
 from infrastructure.adapters.file_handlers.web_file_adapter import WebFileAdapter
 from infrastructure.di.container import Container
+from infrastructure.inference.inference_executor import QueueFullError
 from infrastructure.session.session_manager import SessionManager
 
 
@@ -42,20 +43,56 @@ class WebApp:
         self.container = Container()
         self.container.config.from_dict({
             "context": "web",
-            "max_history_length": 10,
+            "max_history_length": 100,  # Hard cap; history is trimmed by its token budget first
             "default_temp": 0.7,
-            "model_name": "deepseek-ai/deepseek-coder-6.7b-instruct"
+            "summary_max_tokens": 512,  # Summary of evicted turns kept in the prompt; 0 disables it
+            "retriever": "embedding",  # "embedding", "bm25" (no model needed) or "none"
+            "retrieval_model_name": "sentence-transformers/all-MiniLM-L6-v2",  # CPU encoder for "embedding"
+            "retrieval_top_k": 8,  # Relevant chunks of project files packed per message
+            "backend": "huggingface",  # "huggingface" or "llama_cpp"
+            "model_name": "deepseek-ai/deepseek-coder-6.7b-instruct",
+            "quantization": "none",  # "int8_dynamic" for CPU-only machines
+            "max_batch_size": 8,
+            "time_slice_ms": 2000,  # Run time after which a full batch makes room for waiting requests; 0 never
+            "prefill_chunk_tokens": 512,  # Prompt tokens per prefill forward pass; 0 prefills whole prompts
+            "kv_cache_budget_mb": None,  # Key/value memory for running requests and cached turns; None uses a share of free memory
+            "prefix_cache_mb": 4096,  # Shared prompt prefixes; ~8k tokens at 512 KB/token, above the 6000-token project context budget
+            "session_cache_mb": 4096,  # Key/values kept between turns across all sessions; least recently used go first
+            "response_cache": False,  # Replay answers to identical prompts; off since sampled answers vary
+            "response_cache_mb": 64,
+            "response_cache_dir": "cache/responses",  # None keeps the cache in memory only
+            "response_cache_disk_mb": 512,
+            "speculative_mode": "prompt_lookup",  # "draft", "prompt_lookup" or "none"
+            "draft_model_name": None,  # Needed for "draft", e.g. "deepseek-ai/deepseek-coder-1.3b-instruct"
+            "num_speculative_tokens": 4,
+            "prompt_lookup_tokens": 10,
+            "stream_timeout": 120,  # Seconds without output before a generation is abandoned
+            "stream_flush_interval_ms": 50,  # Coalesce streamed text into one frame per interval...
+            "stream_flush_bytes": 256,  # ...or per this many bytes; 0 and 0 send every token
+            "gguf_model_path": "models/deepseek-coder-6.7b-instruct.Q4_K_M.gguf",  # Used by "llama_cpp"
+            "gguf_n_ctx": 16384,
+            "gguf_n_threads": None,  # Defaults to the number of CPU cores
+            "gguf_n_gpu_layers": 0,
+            "inference_workers": 8,  # Requests handled at once; more than max_batch_size only queue on the scheduler
+            "inference_queue_size": 32  # Requests waiting beyond that; further ones are told to retry
         })
         self.container.socketio.override(self.socketio)
 
         # Get references to managers and adapters from container
         self.file_adapter = WebFileAdapter(upload_folder=self.app.config['UPLOAD_FOLDER'])
         self.chat_adapter = WebChatAdapter(self.socketio)
-        self.session_manager = SessionManager()
+        self.session_manager = SessionManager(kv_caches=self.container.session_kv_caches())
         self.model_manager = self.container.model_manager()
 
-        # Track model initialization status
-        self.model_initialization_threads = {}
+        # Fixed worker pool for model loading and generation instead of a thread per event
+        self.inference_executor = self.container.inference_executor()
+
+        # Sessions waiting for the model initialization job
+        self.model_initialization_jobs = {}
+
+        # Socket.IO connection id -> chat session, to cancel generation on disconnect
+        self.socket_sessions = {}
+        self.socket_sessions_lock = threading.Lock()
 
         # Register routes and socket events
         self._register_routes()
@@ -68,6 +105,30 @@ class WebApp:
         def health_check():
             return jsonify({"status": "ok"})
 
+        @self.app.route('/api/metrics', methods=['GET'])
+        def metrics():
+            """Report inference metrics."""
+            metrics = {
+                'backend': self.container.config.backend(),
+                'scheduler': self.container.generation_scheduler().stats(),
+                'prefix_cache': self.container.prefix_cache().stats(),
+                'session_caches': self.container.session_kv_caches().stats(),
+                'streaming': self.container.stream_stats().stats(),
+                'history_summaries': self.container.history_summarizer().stats(),
+                'code_chunker': self.container.code_chunker().stats(),
+                'executor': self.inference_executor.stats()
+            }
+            if self.container.config.response_cache():
+                metrics['response_cache'] = self.container.response_cache().stats()
+
+            # The llama.cpp backend tracks its own throughput
+            if self.model_manager.is_initialized():
+                model, _ = self.model_manager.get_model_and_tokenizer()
+                if hasattr(model, 'stats'):
+                    metrics['llama_cpp'] = model.stats()
+
+            return jsonify(metrics)
+
         @self.app.route('/')
         def index():
             """Render the main chat interface."""
@@ -125,6 +186,12 @@ class WebApp:
                 # Store in session manager
                 self.session_manager.set_session_data(session_id, 'conversation_uc', conversation_uc)
 
+                # Reuse this session's past key/values so later turns only prefill new tokens
+                response_generator = conversation_uc.response_generator
+                if hasattr(response_generator, 'set_session_cache'):
+                    session_data = self.session_manager.get_session(session_id)
+                    response_generator.set_session_cache(session_data['kv_cache'])
+
                 # Check if model is initialized
                 if not self.model_manager.is_initialized():
                     # Start model initialization in background
@@ -381,6 +448,32 @@ class WebApp:
             """Handle client disconnections."""
             print('Client disconnected')
 
+            # Stop generating for a session once its last client is gone
+            with self.socket_sessions_lock:
+                session_id = self.socket_sessions.pop(request.sid, None)
+                still_connected = session_id in self.socket_sessions.values()
+            if session_id and not still_connected:
+                if self._cancel_generation(session_id):
+                    print(f"Cancelled generation for disconnected session: {session_id}")
+
+        @self.socketio.on('cancel_generation')
+        def handle_cancel_generation(data):
+            """
+            Handle a client asking to stop the response being generated.
+
+            Parameters:
+            - data: Dictionary containing:
+              - session_id: The session identifier
+            """
+            session_id = data.get('session_id')
+            if not session_id:
+                emit('error', {'message': 'Missing session ID'})
+                return
+
+            cancelled = self._cancel_generation(session_id)
+            print(f"Cancel requested for session {session_id}: {'cancelled' if cancelled else 'nothing running'}")
+            emit('generation_cancelled', {'status': 'cancelled' if cancelled else 'idle'})
+
         @self.socketio.on('join_session')
         def handle_join_session(data):
             """
@@ -402,6 +495,8 @@ class WebApp:
 
             # Join the Socket.IO room for this session
             join_room(session_id)
+            with self.socket_sessions_lock:
+                self.socket_sessions[request.sid] = session_id
 
             # Store the session ID in the Flask session
             flask_session['chat_session_id'] = session_id
@@ -499,11 +594,20 @@ class WebApp:
                     print(f"Error setting file focus: {str(e)}")
                     # Continue processing even if focus setting fails
 
-            # Tell client we've received the message and are processing
-            emit('message_received', {'status': 'processing'})
+            # A new message supersedes a response still being generated
+            if self._cancel_generation(session_id):
+                print(f"Cancelled previous response for session: {session_id}")
 
-            # Process message in a separate thread to avoid blocking
-            self._process_message_async(session_id, conversation_uc, message, code_content)
+            # Process message on the worker pool to avoid blocking
+            try:
+                position = self._process_message_async(session_id, conversation_uc, message, code_content)
+            except QueueFullError as e:
+                print(f"Rejected message for session {session_id}: {str(e)}")
+                emit('server_busy', {'message': str(e), 'retry_after': e.retry_after})
+                return
+
+            # Tell client we've received the message and are processing
+            emit('message_received', {'status': 'processing', 'queue_position': position})
 
         @self.app.route('/api/update-file', methods=['POST'])
         def update_file():
@@ -688,7 +792,7 @@ class WebApp:
                 start_time = time.time()
 
                 # Initialize the model
-                self.model_manager.initialize(self.container.config.model_name())
+                self.container.initialize_model()
 
                 model, tokenizer = self.model_manager.get_model_and_tokenizer()
 
@@ -708,9 +812,8 @@ class WebApp:
                                    {'status': 'success'},
                                    room=session_id)
 
-                # Remove thread reference
-                if session_id in self.model_initialization_threads:
-                    del self.model_initialization_threads[session_id]
+                # Remove job reference
+                self.model_initialization_jobs.pop(session_id, None)
 
             except Exception as e:
                 print(f"Error initializing model: {str(e)}")
@@ -722,28 +825,56 @@ class WebApp:
                                    {'status': 'error', 'message': f'Error initializing model: {str(e)}'},
                                    room=session_id)
 
-                # Remove thread reference
-                if session_id in self.model_initialization_threads:
-                    del self.model_initialization_threads[session_id]
+                # Remove job reference
+                self.model_initialization_jobs.pop(session_id, None)
 
-        # Only start a new thread if the model isn't already initialized or initializing
+        # Only queue a new job if the model isn't already initialized or initializing
         if not self.model_manager.is_initialized() and not self.model_manager.is_initializing():
-            # Start model initialization in a separate thread
-            thread = threading.Thread(target=initialize_task)
-            thread.daemon = True
-            thread.start()
-
-            # Store thread reference
-            self.model_initialization_threads[session_id] = thread
-            print(f"Started model initialization thread {thread.name} for session {session_id}")
+            try:
+                position = self.inference_executor.submit(initialize_task)
+            except QueueFullError as e:
+                print(f"Cannot queue model initialization: {str(e)}")
+                self.socketio.emit('model_status',
+                                   {'status': 'error', 'message': str(e), 'retry_after': e.retry_after},
+                                   room=session_id)
+                return
+
+            # Store job reference
+            self.model_initialization_jobs[session_id] = position
+            print(f"Queued model initialization for session {session_id} at position {position}")
         else:
             # Call initialize task directly (it will just notify the client)
             initialize_task()
 
-    def _process_message_async(self, session_id, conversation_uc, message, code_content):
-        """Process the message in a separate thread."""
+    def _cancel_generation(self, session_id) -> bool:
+        """Cancel the response being generated for a session, if any, and drop its queued messages"""
+        discarded = self.inference_executor.discard(session_id)
+        for _ in range(discarded):
+            self.socketio.emit('assistant_response_complete', {'status': 'cancelled'}, room=session_id)
+
+        session_data = self.session_manager.get_session(session_id)
+        if not session_data or not session_data.get('conversation_uc'):
+            return False
+
+        response_generator = session_data['conversation_uc'].response_generator
+        if hasattr(response_generator, 'cancel'):
+            return response_generator.cancel() or discarded > 0
+        return discarded > 0
+
+    def _process_message_async(self, session_id, conversation_uc, message, code_content) -> int:
+        """
+        Queue the message on the inference executor and return its queue position.
+        Raises QueueFullError when the server cannot take more work.
+        """
+        session_data = self.session_manager.get_session(session_id) or {}
+        generation_lock = session_data.get('generation_lock') or threading.Lock()
 
         def process_task():
+            # Wait for a cancelled previous response to finish writing its history
+            with generation_lock:
+                process_message()
+
+        def process_message():
             try:
                 print("Starting model processing")
 
@@ -763,9 +894,14 @@ class WebApp:
                 print(f"Full response generated, length: {len(full_response)}")
 
                 # Signal completion to the client
-                self.socketio.emit('assistant_response_complete',
-                                   {'status': 'complete'},
-                                   room=session_id)
+                cancelled = getattr(response_generator, 'last_finish_reason', None) == 'cancelled'
+                completion = {'status': 'cancelled' if cancelled else 'complete'}
+
+                # Tell the client what did not fit into the prompt
+                if conversation_uc.last_truncation is not None:
+                    completion['truncation'] = conversation_uc.last_truncation.to_dict()
+
+                self.socketio.emit('assistant_response_complete', completion, room=session_id)
 
                 print("Response sent to client")
 
@@ -777,10 +913,12 @@ class WebApp:
                                    {'message': f'Error generating response: {str(e)}'},
                                    room=session_id)
 
-        thread = threading.Thread(target=process_task)
-        thread.daemon = True
-        thread.start()
-        print(f"Started processing thread {thread.name}")
+        def report_position(position, eta):
+            self.socketio.emit('queue_status', {'queue_position': position, 'eta_seconds': eta}, room=session_id)
+
+        position = self.inference_executor.submit(process_task, key=session_id, on_queued=report_position)
+        print(f"Queued message for session {session_id} at position {position}")
+        return position
 
     def run(self, debug=True, host='0.0.0.0', port=5000):
         """Run the application."""
@@ -9,6 +9,8 @@ const ChatComponent = (function() {
     const sendButton = DomUtils.getById('send-btn');
     let isProcessing = false;
     let currentStreamingMessage = null;
+    let streamFrames = 0;  // assistant_chunk frames received for the current response
+    let streamHandlingMs = 0;  // Time spent rendering them
 
     /**
      * Initialize the component
@@ -25,6 +27,13 @@ const ChatComponent = (function() {
             }
         });
 
+        // Escape stops the response being generated
+        DomUtils.addEvent(document, 'keydown', (e) => {
+            if (e.key === 'Escape' && isProcessing) {
+                SocketService.cancelGeneration();
+            }
+        });
+
         // Setup socket event handlers
         setupSocketEvents();
 
@@ -64,16 +73,23 @@ const ChatComponent = (function() {
 
                 // Initialize an empty streaming message container
                 currentStreamingMessage = '';
+                streamFrames = 0;
+                streamHandlingMs = 0;
             }
         });
 
         SocketService.on('assistantChunk', (data) => {
             if (currentStreamingMessage !== null) {
+                const start = performance.now();
+
                 // Append new chunk to current message
                 currentStreamingMessage += data.content;
 
                 // Update the streaming message container
                 MessageComponent.updateStreamingMessage(currentStreamingMessage);
+
+                streamFrames++;
+                streamHandlingMs += performance.now() - start;
             }
         });
 
@@ -90,7 +106,8 @@ const ChatComponent = (function() {
         });
 
         SocketService.on('assistantResponseComplete', (data) => {
-            console.log('Response complete, finalizing message');
+            console.log(`Response ${data.status === 'cancelled' ? 'cancelled' : 'complete'}, finalizing message`);
+            console.log(`Stream: ${streamFrames} frames, ${streamHandlingMs.toFixed(1)} ms rendering`);
             isProcessing = false;
 
             // This is the critical part - ensure we have message content
@@ -110,6 +127,22 @@ const ChatComponent = (function() {
             currentStreamingMessage = null;
         });
 
+        SocketService.on('generationCancelled', (data) => {
+            // 'idle' means the server had nothing running, e.g. the response had just finished
+            DomUtils.showToast(data.status === 'cancelled' ? 'Response stopped' : 'Nothing to stop', 'info');
+        });
+
+        SocketService.on('queueStatus', (data) => {
+            DomUtils.showToast(`Waiting for a free slot: position ${data.queue_position}, about ${Math.ceil(data.eta_seconds)} s`, 'warning');
+        });
+
+        SocketService.on('serverBusy', (data) => {
+            isProcessing = false;
+            MessageComponent.removeProcessingIndicator();
+            currentStreamingMessage = null;
+            MessageComponent.showError(data.message);
+        });
+
         SocketService.on('project_update_result', (data) => {
             console.log('Project update result:', data);
             // Show toast with the result message
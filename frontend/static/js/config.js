@@ -26,6 +26,10 @@ const AppConfig = (function() {
             assistantChunk: 'assistant_chunk',
             assistantResponse: 'assistant_response',
             assistantResponseComplete: 'assistant_response_complete',
+            cancelGeneration: 'cancel_generation',
+            generationCancelled: 'generation_cancelled',
+            queueStatus: 'queue_status',
+            serverBusy: 'server_busy',
             projectUpdate: 'project_update',
             error: 'error'
         },
@@ -54,6 +54,8 @@ const ElectronService = (function() {
       'assistant_chunk',
       'assistant_response',
       'assistant_response_complete',
+      'queue_status',
+      'server_busy',
       'project_update_result',
       'project_files',
       'error'
@@ -60,6 +60,19 @@ const SocketService = (function() {
             triggerEvent('assistantResponseComplete', data);
         });
 
+        socket.on(AppConfig.getSocketEvent('generationCancelled'), (data) => {
+            triggerEvent('generationCancelled', data);
+        });
+
+        // Admission events
+        socket.on(AppConfig.getSocketEvent('queueStatus'), (data) => {
+            triggerEvent('queueStatus', data);
+        });
+
+        socket.on(AppConfig.getSocketEvent('serverBusy'), (data) => {
+            triggerEvent('serverBusy', data);
+        });
+
         // Project update events
         socket.on(AppConfig.getSocketEvent('project_update_result'), (data) => {
             triggerEvent('project_update_result', data);
@@ -181,6 +194,21 @@ const SocketService = (function() {
             });
         },
 
+        /**
+         * Ask the server to stop the response being generated
+         * @returns {boolean} True if sent, false otherwise
+         */
+        cancelGeneration: function() {
+            if (!sessionId) {
+                console.error('No session ID, cannot cancel generation');
+                return false;
+            }
+
+            return this.emit(AppConfig.getSocketEvent('cancelGeneration'), {
+                session_id: sessionId
+            });
+        },
+
         /**
          * Send project update
          * @param {Object} data - Project update data
@@ -0,0 +1,101 @@
+# infrastructure/adapters/chat_output/chunk_coalescer.py
+import threading
+import time
+from typing import Callable, Optional
+
+
+class StreamStats:
+    """Frames sent per streamed response, shared by every session"""
+
+    def __init__(self):
+        self._lock = threading.Lock()
+        self.responses = 0
+        self.chunks = 0  # Text fragments produced by the generator
+        self.frames = 0  # Fragments after coalescing, i.e. emits to the client
+        self.bytes = 0
+
+    def record(self, chunks: int, frames: int, nbytes: int):
+        with self._lock:
+            self.responses += 1
+            self.chunks += chunks
+            self.frames += frames
+            self.bytes += nbytes
+
+    def stats(self) -> dict:
+        with self._lock:
+            return {
+                'responses': self.responses,
+                'chunks': self.chunks,
+                'frames': self.frames,
+                'avg_frames_per_response': round(self.frames / self.responses, 1) if self.responses else 0.0,
+                'avg_chunks_per_frame': round(self.chunks / self.frames, 2) if self.frames else 0.0,
+                'avg_frame_bytes': round(self.bytes / self.frames, 1) if self.frames else 0.0
+            }
+
+
+class ChunkCoalescer:
+    """
+    Buffers streamed text and forwards it to sink in fewer, larger frames.
+    A frame is sent once flush_interval_ms passed since the previous one or
+    flush_bytes are pending, and whatever is left is sent by close().
+    Pending text is also sent by a timer, so it is not held back while the
+    generator stalls, e.g. while the scheduler has paused the request.
+    Both limits at 0 forward every chunk as it comes.
+    """
+
+    def __init__(self, sink: Callable[[str], None], flush_interval_ms: int = 50, flush_bytes: int = 256,
+                 stats: Optional[StreamStats] = None):
+        self.sink = sink
+        self.flush_interval = (flush_interval_ms or 0) / 1000
+        self.flush_bytes = flush_bytes or 0
+        self.stats = stats
+        self._pending = []
+        self._pending_bytes = 0
+        self._last_flush = time.monotonic()
+        self._chunks = 0
+        self._frames = 0
+        self._bytes = 0
+        self._timer: Optional[threading.Timer] = None
+        self._lock = threading.Lock()  # The timer flushes from its own thread
+
+    def push(self, text: str):
+        if not text:
+            return
+        with self._lock:
+            self._chunks += 1
+            self._pending.append(text)
+            self._pending_bytes += len(text.encode('utf-8'))
+
+            elapsed = time.monotonic() - self._last_flush
+            full = self.flush_bytes and self._pending_bytes >= self.flush_bytes
+            if elapsed >= self.flush_interval or full:
+                self._flush()
+            elif self._timer is None:
+                self._timer = threading.Timer(self.flush_interval - elapsed, self.flush)
+                self._timer.daemon = True
+                self._timer.start()
+
+    def flush(self):
+        """Send everything pending as one frame"""
+        with self._lock:
+            self._flush()
+
+    def _flush(self):
+        if self._timer is not None:
+            self._timer.cancel()
+            self._timer = None
+        self._last_flush = time.monotonic()
+        if not self._pending:
+            return
+        frame = "".join(self._pending)
+        self._frames += 1
+        self._bytes += self._pending_bytes
+        self._pending = []
+        self._pending_bytes = 0
+        self.sink(frame)
+
+    def close(self):
+        """Flush the tail of the stream and record its frame counts"""
+        self.flush()
+        if self.stats is not None and self._chunks:
+            self.stats.record(self._chunks, self._frames, self._bytes)
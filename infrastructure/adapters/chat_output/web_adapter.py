@@ -1,4 +1,6 @@
 # infrastructure/adapters/chat_output/web_adapter.py
+import threading
+
 from core.ports.chat_output_port import ChatOutputPort
 from flask import jsonify, session
 from flask_socketio import emit
@@ -7,9 +9,18 @@ from flask_socketio import emit
 class WebChatAdapter(ChatOutputPort):
     def __init__(self, socketio):
         self.socketio = socketio
-        self.current_room = None
+        self._local = threading.local()  # Each processing thread streams to its own room
         self.session_messages = {}  # Store messages by session ID
 
+    @property
+    def current_room(self):
+        """Room of the session handled by the calling thread"""
+        return getattr(self._local, 'room', None)
+
+    @current_room.setter
+    def current_room(self, room_id):
+        self._local.room = room_id
+
     def display_message(self, message: str, room=None):
         """Send message to client via Socket.IO"""
         target_room = room or self.current_room
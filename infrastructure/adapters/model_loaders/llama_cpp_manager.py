@@ -0,0 +1,204 @@
+# infrastructure/adapters/model_loaders/llama_cpp_manager.py
+import os
+import threading
+import time
+from contextlib import contextmanager
+from types import SimpleNamespace
+from typing import Dict, List, Optional
+
+from core.ports.model_loader_port import ModelLoaderPort
+
+
+class LlamaCppModel:
+    """A loaded GGUF model plus the lock that serializes access to its context"""
+
+    def __init__(self, llm, model_path: str):
+        self.llm = llm
+        self.model_path = model_path
+        self.lock = threading.Lock()  # A llama.cpp context runs one sequence at a time
+        self.waiting = 0  # Interactive requests waiting for the lock; background work yields to them
+        self._waiting_lock = threading.Lock()
+
+        # Metrics
+        self.completed_requests = 0
+        self.prompt_tokens = 0
+        self.generated_tokens = 0
+        self.generation_time = 0.0
+
+    @contextmanager
+    def interactive(self):
+        """Hold the context for a request a user is waiting on"""
+        with self._waiting_lock:
+            self.waiting += 1
+        self.lock.acquire()
+        with self._waiting_lock:
+            self.waiting -= 1
+        try:
+            yield
+        finally:
+            self.lock.release()
+
+    def record(self, prompt_tokens: int, generated_tokens: int, elapsed: float):
+        """Record one finished generation"""
+        self.completed_requests += 1
+        self.prompt_tokens += prompt_tokens
+        self.generated_tokens += generated_tokens
+        self.generation_time += elapsed
+
+    def stats(self) -> dict:
+        """Throughput numbers comparable to GenerationScheduler.stats()"""
+        return {
+            'model_path': self.model_path,
+            'completed_requests': self.completed_requests,
+            'prompt_tokens': self.prompt_tokens,
+            'generated_tokens': self.generated_tokens,
+            'tokens_per_second': round(self.generated_tokens / self.generation_time, 2)
+            if self.generation_time else 0.0
+        }
+
+
+class LlamaCppTokenizer:
+    """
+    Exposes the llama.cpp vocabulary through the subset of the HuggingFace tokenizer
+    interface the rest of the application uses.
+    """
+
+    def __init__(self, llm):
+        self.llm = llm
+        metadata: Dict[str, str] = getattr(llm, 'metadata', None) or {}
+        self.chat_template: Optional[str] = metadata.get('tokenizer.chat_template')
+        self.bos_token = self._token_text(llm.token_bos())
+        self.eos_token = self._token_text(llm.token_eos())
+        self.eos_token_id = llm.token_eos()
+        self.pad_token = self.eos_token
+        self.model_max_length = llm.n_ctx()
+
+    def __call__(self, text: str, add_special_tokens: bool = True, **kwargs):
+        return SimpleNamespace(input_ids=self.encode(text, add_special_tokens))
+
+    def encode(self, text: str, add_special_tokens: bool = True) -> List[int]:
+        return self.llm.tokenize(text.encode('utf-8'), add_bos=add_special_tokens, special=True)
+
+    def decode(self, token_ids: List[int], skip_special_tokens: bool = False) -> str:
+        return self.llm.detokenize(token_ids).decode('utf-8', errors='replace')
+
+    def apply_chat_template(self, messages: List[dict], tokenize: bool = False,
+                            add_generation_prompt: bool = True):
+        """Render messages with the chat template stored in the GGUF metadata"""
+        if self.chat_template is None:
+            raise ValueError("Model has no chat template")
+
+        from llama_cpp.llama_chat_format import Jinja2ChatFormatter
+        formatter = Jinja2ChatFormatter(
+            template=self.chat_template,
+            eos_token=self.eos_token,
+            bos_token=self.bos_token,
+            add_generation_prompt=add_generation_prompt
+        )
+        prompt = formatter(messages=messages).prompt
+        return self.encode(prompt, add_special_tokens=False) if tokenize else prompt
+
+    def _token_text(self, token_id: int) -> str:
+        if token_id < 0:
+            return ""
+        return self.llm.detokenize([token_id], special=True).decode('utf-8', errors='replace')
+
+
+class LlamaCppModelManager:
+    """
+    Singleton that loads a local GGUF model through llama-cpp-python.
+    Mirrors ModelManager so entrypoints can use either backend.
+    """
+    _instance = None
+    _model = None
+    _tokenizer = None
+    _is_initialized = False
+    _is_initializing = False
+    _init_lock = threading.Lock()
+
+    def __new__(cls, *args, **kwargs):
+        """Ensure singleton pattern"""
+        if cls._instance is None:
+            cls._instance = super(LlamaCppModelManager, cls).__new__(cls)
+        return cls._instance
+
+    def initialize(self, model_path: str, n_ctx: int = 16384, n_threads: Optional[int] = None,
+                   n_gpu_layers: int = 0):
+        """
+        Load the GGUF file at model_path.
+        n_threads defaults to the number of CPU cores; n_gpu_layers offloads layers to a GPU
+        when llama.cpp was built with GPU support.
+        """
+        with self._init_lock:
+            if self._is_initialized:
+                print("Model already initialized, skipping initialization")
+                return
+
+            if self._is_initializing:
+                print("Model initialization already in progress, skipping duplicate initialization")
+                return
+
+            print(f"Starting GGUF model initialization: {model_path}")
+            self._is_initializing = True
+
+        try:
+            from llama_cpp import Llama
+
+            start_time = time.time()
+            llm = Llama(
+                model_path=model_path,
+                n_ctx=n_ctx or 0,  # 0 uses the context length the model was trained with
+                n_threads=n_threads or os.cpu_count(),
+                n_gpu_layers=n_gpu_layers or 0,
+                verbose=False
+            )
+            self._model = LlamaCppModel(llm, model_path)
+            self._tokenizer = LlamaCppTokenizer(llm)
+
+            with self._init_lock:
+                self._is_initialized = True
+                self._is_initializing = False
+            print(f"Model {model_path} loaded in {time.time() - start_time:.2f} seconds")
+        except Exception as e:
+            with self._init_lock:
+                self._is_initializing = False
+            print(f"Error loading model: {str(e)}")
+            raise
+
+    def get_model_and_tokenizer(self):
+        """Get the loaded model and tokenizer"""
+        if not self._is_initialized:
+            raise ValueError("Model Manager not initialized. Call initialize() first.")
+        return self._model, self._tokenizer
+
+    def get_draft_model(self):
+        """Speculative decoding with a draft model is only available on the HuggingFace backend"""
+        return None
+
+    def is_initialized(self):
+        """Check if the model is initialized"""
+        return self._is_initialized
+
+    def is_initializing(self):
+        """Check if the model is currently being initialized"""
+        return self._is_initializing
+
+
+class LlamaCppModelAdapter(ModelLoaderPort):
+    def __init__(self, model_path: str, n_ctx: int = 16384, n_threads: Optional[int] = None,
+                 n_gpu_layers: int = 0):
+        self.model_path = model_path
+        self.n_ctx = n_ctx
+        self.n_threads = n_threads
+        self.n_gpu_layers = n_gpu_layers
+        self.model_manager = LlamaCppModelManager()
+
+    def load_model_and_tokenizer(self):
+        """
+        Get the model and tokenizer from the model manager.
+        If the model manager is not initialized, initialize it first.
+        """
+        if not self.model_manager.is_initialized():
+            self.model_manager.initialize(self.model_path, self.n_ctx, self.n_threads, self.n_gpu_layers)
+
+        return self.model_manager.get_model_and_tokenizer()
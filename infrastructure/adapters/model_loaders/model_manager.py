@@ -3,6 +3,53 @@ from transformers import AutoModelForCausalLM, AutoTokenizer
 import torch
 import threading
 
+# Supported values for the quantization setting
+QUANTIZATION_NONE = "none"
+QUANTIZATION_INT8_DYNAMIC = "int8_dynamic"
+
+
+def load_causal_lm(model_name, quantization=QUANTIZATION_NONE):
+    """
+    Load a causal LM for inference.
+    "none" keeps bf16 weights placed by device_map="auto". "int8_dynamic" runs on CPU with
+    the linear layers' weights stored as int8 and activations quantized on the fly,
+    roughly halving resident memory compared to bf16.
+    """
+    if quantization in (None, QUANTIZATION_NONE):
+        return AutoModelForCausalLM.from_pretrained(
+            model_name,
+            torch_dtype=torch.bfloat16,
+            trust_remote_code=True,
+            device_map="auto"
+        )
+
+    if quantization == QUANTIZATION_INT8_DYNAMIC:
+        model = AutoModelForCausalLM.from_pretrained(
+            model_name,
+            torch_dtype=torch.bfloat16,
+            trust_remote_code=True,
+            low_cpu_mem_usage=True
+        )
+        return _quantize_int8_dynamic(model.eval())
+
+    raise ValueError(f"Unsupported quantization mode: {quantization}")
+
+
+def _quantize_int8_dynamic(model):
+    """Replace every nn.Linear with a dynamically quantized int8 version"""
+    # Dynamic quantization needs float32 weights; converting one decoder block at a time
+    # keeps peak memory close to the bf16 model instead of a full float32 copy
+    block_lists = [module for module in model.modules() if isinstance(module, torch.nn.ModuleList)]
+    for blocks in block_lists:
+        for block in blocks:
+            block.float()
+            torch.ao.quantization.quantize_dynamic(block, {torch.nn.Linear}, dtype=torch.qint8, inplace=True)
+
+    # Embeddings, norms and the LM head are what is left in bf16
+    model.float()
+    torch.ao.quantization.quantize_dynamic(model, {torch.nn.Linear}, dtype=torch.qint8, inplace=True)
+    return model
+
 
 class ModelManager:
     """
@@ -12,6 +59,7 @@ class ModelManager:
     _instance = None
     _model = None
     _tokenizer = None
+    _draft_model = None
     _is_initialized = False
     _is_initializing = False
     _init_lock = threading.Lock()
@@ -23,8 +71,14 @@ class ModelManager:
             cls._instance = super(ModelManager, cls).__new__(cls)
         return cls._instance
 
-    def initialize(self, model_name="deepseek-ai/deepseek-coder-6.7b-instruct"):
-        """Initialize and load the model and tokenizer"""
+    def initialize(self, model_name="deepseek-ai/deepseek-coder-6.7b-instruct", draft_model_name=None,
+                   quantization=QUANTIZATION_NONE):
+        """
+        Initialize and load the model and tokenizer.
+        If draft_model_name is given, a smaller model sharing the tokenizer is loaded
+        as well to propose tokens for speculative decoding.
+        quantization selects the weight format ("none" or "int8_dynamic" for CPU).
+        """
         # Use a lock to prevent concurrent initializations
         with self._init_lock:
             # Check if already initialized or initializing
@@ -36,16 +90,11 @@ class ModelManager:
                 print("Model initialization already in progress, skipping duplicate initialization")
                 return
 
-            print(f"Starting model initialization: {model_name}")
+            print(f"Starting model initialization: {model_name} (quantization: {quantization or QUANTIZATION_NONE})")
             self._is_initializing = True
 
         try:
-            self._model = AutoModelForCausalLM.from_pretrained(
-                model_name,
-                torch_dtype=torch.bfloat16,
-                trust_remote_code=True,
-                device_map="auto"
-            )
+            self._model = load_causal_lm(model_name, quantization)
 
             self._tokenizer = AutoTokenizer.from_pretrained(
                 model_name,
@@ -55,6 +104,15 @@ class ModelManager:
             if self._tokenizer.pad_token is None:
                 self._tokenizer.pad_token = self._tokenizer.eos_token
 
+            if draft_model_name:
+                try:
+                    print(f"Loading draft model: {draft_model_name}")
+                    self._draft_model = load_causal_lm(draft_model_name, quantization)
+                except Exception as e:
+                    # Speculative decoding is optional; fall back to plain decoding
+                    print(f"Error loading draft model, continuing without it: {str(e)}")
+                    self._draft_model = None
+
             with self._init_lock:
                 self._is_initialized = True
                 self._is_initializing = False
@@ -71,6 +129,10 @@ class ModelManager:
             raise ValueError("Model Manager not initialized. Call initialize() first.")
         return self._model, self._tokenizer
 
+    def get_draft_model(self):
+        """Get the draft model used for speculative decoding, if one was loaded"""
+        return self._draft_model
+
     def is_initialized(self):
         """Check if the model is initialized"""
         return self._is_initialized
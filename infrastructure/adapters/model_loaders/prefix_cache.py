@@ -0,0 +1,238 @@
+# infrastructure/adapters/model_loaders/prefix_cache.py
+import threading
+import time
+from typing import Dict, List, Optional, Tuple
+
+import torch
+from transformers import DynamicCache
+
+from infrastructure.inference.kv_cache import cache_from_layers
+
+
+class _RadixNode:
+    """Edge of the radix tree: a run of tokens and the key/values computed for them"""
+
+    def __init__(self, tokens: Tuple[int, ...] = (), keys: Optional[List[torch.Tensor]] = None,
+                 values: Optional[List[torch.Tensor]] = None, parent: Optional["_RadixNode"] = None):
+        self.tokens = tokens
+        self.keys = keys or []
+        self.values = values or []
+        self.parent = parent
+        self.children: Dict[int, "_RadixNode"] = {}
+        self.last_access = time.time()
+
+    @property
+    def nbytes(self) -> int:
+        return sum(t.numel() * t.element_size() for t in self.keys + self.values)
+
+    def slice(self, start: int, end: int) -> Tuple[List[torch.Tensor], List[torch.Tensor]]:
+        """Key/values for tokens[start:end] of this edge"""
+        return ([k[:, :, start:end, :] for k in self.keys],
+                [v[:, :, start:end, :] for v in self.values])
+
+
+class RadixPrefixCache:
+    """
+    Token-level radix tree of prompt prefixes and their KV blocks, shared by all sessions.
+    Prompts that start with the same tokens (e.g. the same uploaded project) reuse the
+    stored key/values instead of prefilling them again. Prefixes are cached in whole
+    blocks of block_size tokens and least recently used leaves are evicted once the
+    memory cap is exceeded.
+    """
+
+    def __init__(self, max_memory_mb: int = 4096, block_size: int = 16):
+        self.max_bytes = int((max_memory_mb or 0) * 1024 * 1024)
+        self.block_size = block_size or 16
+        self._roots: Dict[int, _RadixNode] = {}  # One tree per model
+        self._bytes_used = 0
+        self._lock = threading.Lock()
+
+        # Metrics
+        self.lookups = 0
+        self.hits = 0
+        self.lookup_tokens = 0
+        self.hit_tokens = 0
+        self.inserted_tokens = 0
+        self.evictions = 0
+
+    @property
+    def enabled(self) -> bool:
+        return self.max_bytes > 0
+
+    def match(self, model, input_ids: List[int], min_length: int = 0) -> Tuple[Optional[DynamicCache], int]:
+        """
+        Find the longest cached prefix of input_ids.
+        Returns a fresh cache holding its key/values and the number of tokens it covers,
+        or (None, 0) when nothing longer than min_length is cached.
+        """
+        if not self.enabled:
+            return None, 0
+
+        with self._lock:
+            self.lookups += 1
+            self.lookup_tokens += len(input_ids)
+
+            node = self._roots.get(id(model))
+            keys: List[List[torch.Tensor]] = []
+            values: List[List[torch.Tensor]] = []
+            matched = 0
+            # The last prompt token is always run through the model to get its logits
+            limit = len(input_ids) - 1
+            now = time.time()
+
+            while node is not None and matched < limit:
+                child = node.children.get(input_ids[matched])
+                if child is None:
+                    break
+
+                length = 0
+                while (length < len(child.tokens) and matched + length < limit
+                       and child.tokens[length] == input_ids[matched + length]):
+                    length += 1
+
+                child_keys, child_values = child.slice(0, length)
+                keys.append(child_keys)
+                values.append(child_values)
+                child.last_access = now
+                matched += length
+
+                if length < len(child.tokens):
+                    break
+                node = child
+
+            if matched <= min_length:
+                return None, 0
+
+            self.hits += 1
+            self.hit_tokens += matched
+
+            # Concatenate the edges along the path into one contiguous cache
+            layers = len(keys[0])
+            cache = cache_from_layers(
+                [torch.cat([edge[layer] for edge in keys], dim=2) for layer in range(layers)],
+                [torch.cat([edge[layer] for edge in values], dim=2) for layer in range(layers)]
+            )
+            return cache, matched
+
+    def insert(self, model, input_ids: List[int], cache: DynamicCache):
+        """Store the key/values of a prefilled prompt, in whole blocks"""
+        if not self.enabled:
+            return
+
+        length = (len(input_ids) // self.block_size) * self.block_size
+        if length == 0:
+            return
+
+        with self._lock:
+            node = self._roots.setdefault(id(model), _RadixNode())
+            position = 0
+            now = time.time()
+
+            while position < length:
+                child = node.children.get(input_ids[position])
+                if child is None:
+                    # New branch holding the rest of the prefix, clipped to the blocks the cap can hold
+                    # so an oversized prompt is never copied only to be evicted again
+                    end = position + self._blocks_that_fit(node, cache) * self.block_size
+                    end = min(length, end)
+                    if end <= position:
+                        break
+                    length = end
+                    tokens = tuple(input_ids[position:length])
+                    keys = [k[:, :, position:length, :].clone() for k in cache.key_cache]
+                    values = [v[:, :, position:length, :].clone() for v in cache.value_cache]
+                    new_node = _RadixNode(tokens, keys, values, parent=node)
+                    node.children[tokens[0]] = new_node
+                    self._bytes_used += new_node.nbytes
+                    self.inserted_tokens += len(tokens)
+                    break
+
+                shared = 0
+                while (shared < len(child.tokens) and position + shared < length
+                       and child.tokens[shared] == input_ids[position + shared]):
+                    shared += 1
+
+                if shared < len(child.tokens):
+                    child = self._split(child, shared)
+
+                child.last_access = now
+                position += shared
+                node = child
+
+            self._evict(self.max_bytes)
+
+    def stats(self) -> dict:
+        """Snapshot of cache metrics for sizing"""
+        with self._lock:
+            return {
+                'enabled': self.enabled,
+                'lookups': self.lookups,
+                'hits': self.hits,
+                'hit_rate': round(self.hits / self.lookups, 3) if self.lookups else 0.0,
+                'token_hit_rate': round(self.hit_tokens / self.lookup_tokens, 3) if self.lookup_tokens else 0.0,
+                'hit_tokens': self.hit_tokens,
+                'inserted_tokens': self.inserted_tokens,
+                'evictions': self.evictions,
+                'bytes_used': self._bytes_used,
+                'max_bytes': self.max_bytes
+            }
+
+    def nbytes(self) -> int:
+        with self._lock:
+            return self._bytes_used
+
+    def evict(self, nbytes: int) -> int:
+        """Drop least recently used prefixes until nbytes are freed, e.g. for running requests; returns the bytes freed"""
+        with self._lock:
+            return self._evict(self._bytes_used - nbytes)
+
+    def _blocks_that_fit(self, parent: _RadixNode, cache: DynamicCache) -> int:
+        """Whole blocks a new edge under parent can hold, sized from tensor shapes without copying"""
+        per_token = sum(t.shape[0] * t.shape[1] * t.shape[3] * t.element_size()
+                        for t in list(cache.key_cache) + list(cache.value_cache))
+        # The path above the new edge cannot be evicted while the edge exists
+        path_bytes = 0
+        while parent is not None:
+            path_bytes += parent.nbytes
+            parent = parent.parent
+        room = self.max_bytes - path_bytes
+        if per_token <= 0 or room <= 0:
+            return 0
+        return room // (per_token * self.block_size)
+
+    def _split(self, node: _RadixNode, at: int) -> _RadixNode:
+        """Split an edge so that its first `at` tokens become their own node"""
+        # Copy both halves so evicting one of them actually releases its memory
+        head_keys, head_values = [[t.clone() for t in part] for part in node.slice(0, at)]
+        tail_keys, tail_values = [[t.clone() for t in part] for part in node.slice(at, len(node.tokens))]
+
+        head = _RadixNode(node.tokens[:at], head_keys, head_values, parent=node.parent)
+        head.last_access = node.last_access
+        node.parent.children[head.tokens[0]] = head
+
+        node.tokens = node.tokens[at:]
+        node.keys, node.values = tail_keys, tail_values
+        node.parent = head
+        head.children[node.tokens[0]] = node
+        return head
+
+    def _evict(self, target: int) -> int:
+        """Drop least recently used leaves until the tree holds at most target bytes; returns the bytes freed"""
+        freed = 0
+        while self._bytes_used > target:
+            leaves = [leaf for root in self._roots.values() for leaf in self._leaves(root)]
+            if not leaves:
+                break
+            victim = min(leaves, key=lambda leaf: leaf.last_access)
+            del victim.parent.children[victim.tokens[0]]
+            self._bytes_used -= victim.nbytes
+            freed += victim.nbytes
+            self.evictions += 1
+        return freed
+
+    def _leaves(self, node: _RadixNode):
+        for child in node.children.values():
+            if child.children:
+                yield from self._leaves(child)
+            else:
+                yield child
@@ -0,0 +1,149 @@
+# infrastructure/adapters/prompt_builders/incremental_adapter.py
+import threading
+from dataclasses import dataclass
+from typing import Dict, List, Optional, Tuple
+
+from application.services.prompt_truncator import encode_prompt
+from core.domain.models import ChatMessage
+from infrastructure.adapters.prompt_builders.conversation_adapter import ModelAwarePromptAdapter
+
+
+@dataclass
+class _TemplateParts:
+    """A chat template split into a header, per-role wrappers and the generation prompt"""
+    header: str
+    header_ids: List[int]
+    roles: Dict[str, Tuple[str, str]]  # role -> (prefix, suffix) around the message content
+    generation: str
+    generation_ids: List[int]
+
+
+class IncrementalPromptAdapter(ModelAwarePromptAdapter):
+    """
+    Builds prompts from per-message segments instead of re-rendering the chat template
+    over the whole history. Each message is rendered and tokenized once; its segment
+    and token ids are cached on the ChatMessage, so a new turn only costs its own tokens.
+    Templates whose output is not a plain concatenation of messages (e.g. ones that
+    trim content or treat positions differently) fall back to full rendering.
+    """
+    _PROBE = ["<<probe-0>>", "<<probe-1>>", "<<probe-2>>", "<<probe-3>>"]
+
+    def __init__(self):
+        self._parts: Dict[int, Optional[_TemplateParts]] = {}  # id(tokenizer) -> parts or None
+        self._lock = threading.Lock()
+
+    def build_prompt(self, history: List[ChatMessage], tokenizer) -> str:
+        return self.build_prompt_ids(history, tokenizer)[0]
+
+    def build_prompt_ids(self, history: List[ChatMessage], tokenizer) -> Tuple[str, List[int]]:
+        """Return the prompt text and its token ids"""
+        parts = self._template_parts(tokenizer)
+        if parts is None or any(msg.role not in parts.roles for msg in history):
+            text = super().build_prompt(history, tokenizer)
+            return text, encode_prompt(text, tokenizer)
+
+        texts = [parts.header]
+        ids = list(parts.header_ids)
+        for message in history:
+            segment, segment_ids = self._segment(message, parts, tokenizer)
+            texts.append(segment)
+            ids.extend(segment_ids)
+        texts.append(parts.generation)
+        ids.extend(parts.generation_ids)
+        return "".join(texts), ids
+
+    def count_tokens(self, history: List[ChatMessage], tokenizer) -> Optional[List[int]]:
+        """
+        Token count of each message's segment, plus the fixed overhead of the header
+        and generation prompt as the last element.
+        None when the template cannot be split into per-message segments.
+        """
+        parts = self._template_parts(tokenizer)
+        if parts is None or any(msg.role not in parts.roles for msg in history):
+            return None
+
+        counts = [len(self._segment(message, parts, tokenizer)[1]) for message in history]
+        return counts + [len(parts.header_ids) + len(parts.generation_ids)]
+
+    def _segment(self, message: ChatMessage, parts: _TemplateParts, tokenizer) -> Tuple[str, List[int]]:
+        cache = message.render_cache
+        # The content identity check catches messages copied with dataclasses.replace
+        if cache is not None and cache[0] == id(tokenizer) and cache[1] is message.content:
+            return cache[2], cache[3]
+
+        prefix, suffix = parts.roles[message.role]
+        segment = prefix + message.content + suffix
+        segment_ids = tokenizer(segment, add_special_tokens=False).input_ids
+        message.render_cache = (id(tokenizer), message.content, segment, segment_ids)
+        return segment, segment_ids
+
+    def _template_parts(self, tokenizer) -> Optional[_TemplateParts]:
+        key = id(tokenizer)
+        with self._lock:
+            if key not in self._parts:
+                try:
+                    self._parts[key] = self._split_template(tokenizer)
+                except Exception as e:
+                    print(f"Chat template cannot be rendered incrementally: {str(e)}")
+                    self._parts[key] = None
+            return self._parts[key]
+
+    def _split_template(self, tokenizer) -> Optional[_TemplateParts]:
+        """Work out the template's pieces by rendering probe conversations"""
+        if tokenizer.chat_template is None:
+            # The fallback format is a plain concatenation already
+            header, generation = "", "Assistant: "
+            roles = {role: (f"{role.capitalize()}: ", "\n") for role in ("system", "user", "assistant")}
+        else:
+            def render(messages, add_generation_prompt=False):
+                return tokenizer.apply_chat_template(
+                    [{"role": role, "content": content} for role, content in messages],
+                    tokenize=False,
+                    add_generation_prompt=add_generation_prompt
+                )
+
+            u0, a0, u1, a1 = self._PROBE
+            conversation = [("user", u0), ("assistant", a0), ("user", u1), ("assistant", a1)]
+            rendered = [render(conversation[:n]) for n in range(1, 5)]
+
+            # Later messages must only append to what was rendered before
+            if not all(later.startswith(earlier) for earlier, later in zip(rendered, rendered[1:])):
+                return None
+
+            roles = {}
+            for n in (2, 3):
+                role, content = conversation[n]
+                segment = rendered[n][len(rendered[n - 1]):]
+                if segment.count(content) != 1:
+                    return None
+                prefix, suffix = segment.split(content)
+                roles[role] = (prefix, suffix)
+
+            first_user = roles["user"][0] + u0 + roles["user"][1]
+            if not rendered[0].endswith(first_user):
+                return None
+            header = rendered[0][:len(rendered[0]) - len(first_user)]
+
+            with_generation = render(conversation[:3], add_generation_prompt=True)
+            if not with_generation.startswith(rendered[2]):
+                return None
+            generation = with_generation[len(rendered[2]):]
+
+        parts = _TemplateParts(
+            header=header,
+            header_ids=encode_prompt(header, tokenizer),
+            roles=roles,
+            generation=generation,
+            generation_ids=tokenizer(generation, add_special_tokens=False).input_ids
+        )
+
+        # Whitespace-sensitive sample: templates that trim or rewrite content must not pass
+        if tokenizer.chat_template is not None:
+            sample = [ChatMessage("user", " first\n"), ChatMessage("assistant", "reply "),
+                      ChatMessage("user", "\nsecond")]
+            expected = super().build_prompt(sample, tokenizer)
+            assembled = header + "".join(roles[m.role][0] + m.content + roles[m.role][1] for m in sample) \
+                + generation
+            if assembled != expected:
+                return None
+        return parts
@@ -0,0 +1,78 @@
+# infrastructure/adapters/response_generators/caching_adapter.py
+import hashlib
+import json
+
+from core.ports.response_generator_port import ResponseGeneratorPort
+from infrastructure.adapters.response_generators.response_cache import ResponseCache
+
+
+class CachingResponseGenerator(ResponseGeneratorPort):
+    """
+    Serves repeated prompts from a ResponseCache instead of the model.
+    The key covers the rendered prompt, the model and every sampling setting, so only
+    an identical request is answered from the cache; hits are streamed to the output
+    adapter like a generated answer. Everything else is delegated to the wrapped generator.
+    """
+    REPLAY_CHUNK_CHARS = 256
+
+    def __init__(self, generator: ResponseGeneratorPort, cache: ResponseCache):
+        self.generator = generator
+        self.cache = cache
+        self.output_adapter = None
+        self._cache_hit = False
+
+    def __getattr__(self, name):
+        # Only called for attributes not found here, e.g. set_session_cache or cancel
+        return getattr(self.generator, name)
+
+    @property
+    def last_finish_reason(self):
+        return 'stop' if self._cache_hit else getattr(self.generator, 'last_finish_reason', None)
+
+    def set_output_adapter(self, output_adapter):
+        """Set the output adapter to use for streaming chunks"""
+        self.output_adapter = output_adapter
+        if hasattr(self.generator, 'set_output_adapter'):
+            self.generator.set_output_adapter(output_adapter)
+
+    def generate_response(self, prompt: str, model, tokenizer, prompt_token_ids=None) -> str:
+        key = self._key(prompt, model)
+        response = self.cache.get(key)
+        if response is not None:
+            self._cache_hit = True
+            if hasattr(self.generator, 'set_expected_tokens'):
+                self.generator.set_expected_tokens(None)
+            self._replay(response)
+            return response
+
+        self._cache_hit = False
+        response = self.generator.generate_response(prompt, model, tokenizer, prompt_token_ids=prompt_token_ids)
+
+        # Cancelled, failed or timed out answers are incomplete and must not be replayed
+        if response and self.generator.last_finish_reason in ('stop', 'length'):
+            self.cache.put(key, response)
+        return response
+
+    def _replay(self, response: str):
+        print(response, flush=True)
+        print(f"Response served from cache, length: {len(response)}")
+        if self.output_adapter and hasattr(self.output_adapter, 'stream_chunk'):
+            for start in range(0, len(response), self.REPLAY_CHUNK_CHARS):
+                self.output_adapter.stream_chunk(response[start:start + self.REPLAY_CHUNK_CHARS])
+
+    def _key(self, prompt: str, model) -> str:
+        """Hash of everything that decides the answer: prompt, model and sampling settings"""
+        generator = self.generator
+        generation_config = getattr(model, 'generation_config', None)
+        parts = {
+            'prompt': prompt,
+            'model': getattr(model, 'name_or_path', None) or getattr(model, 'model_path', None),
+            'model_type': type(model).__name__,
+            'dtype': str(getattr(model, 'dtype', '')),
+            'generator': type(generator).__name__,
+            'sampling': {name: getattr(generator, name, None)
+                         for name in ('temperature', 'top_p', 'top_k', 'max_new_tokens', 'speculative_mode')},
+            'generation_config': generation_config.to_dict() if hasattr(generation_config, 'to_dict') else None
+        }
+        encoded = json.dumps(parts, sort_keys=True, default=str)
+        return hashlib.sha256(encoded.encode('utf-8')).hexdigest()
@@ -0,0 +1,155 @@
+# infrastructure/adapters/response_generators/llama_cpp_adapter.py
+import time
+from typing import Optional
+
+from application.services.prompt_truncator import encode_prompt, fit_to_window
+from core.ports.response_generator_port import ResponseGeneratorPort
+from infrastructure.adapters.chat_output.chunk_coalescer import ChunkCoalescer, StreamStats
+from infrastructure.adapters.model_loaders.llama_cpp_manager import LlamaCppModel, LlamaCppTokenizer
+
+
+class LlamaCppResponseAdapter(ResponseGeneratorPort):
+    """
+    Streams completions from a GGUF model through llama.cpp.
+    Requests take turns on the shared context; llama.cpp keeps the key/values of the
+    previous request and only evaluates the part of the prompt that differs from it.
+    """
+
+    def __init__(self, temperature: float = 0.7, top_p: float = 0.95, top_k: int = 40,
+                 max_new_tokens: int = 5000, stream_flush_interval_ms: int = 50,
+                 stream_flush_bytes: int = 256, stream_stats: StreamStats = None):
+        self.output_adapter = None
+        self.last_finish_reason = None
+        self._cancel_requested = False
+        self._streaming = False  # A response is being generated
+        self.temperature = temperature if temperature is not None else 0.7
+        self.top_p = top_p
+        self.top_k = top_k
+        self.max_new_tokens = max_new_tokens
+        self.stream_flush_interval_ms = stream_flush_interval_ms
+        self.stream_flush_bytes = stream_flush_bytes
+        self.stream_stats = stream_stats
+
+    def set_output_adapter(self, output_adapter):
+        """Set the output adapter to use for streaming chunks"""
+        self.output_adapter = output_adapter
+
+    def set_session_cache(self, session_cache):
+        """llama.cpp manages its own KV cache; per-session caches are not used"""
+        pass
+
+    def cancel(self) -> bool:
+        """Stop the response being generated, if any; checked after every evaluated token"""
+        if not self._streaming:
+            return False
+        self._cancel_requested = True
+        return True
+
+    def generate_response(self, prompt: str, model: LlamaCppModel, tokenizer: LlamaCppTokenizer,
+                          prompt_token_ids=None) -> str:
+        if prompt_token_ids is not None:
+            input_ids = list(prompt_token_ids)
+        else:
+            input_ids = encode_prompt(prompt, tokenizer)
+
+        # The prompt was already fitted to the window; never let the answer run past it either
+        input_ids, max_new_tokens = fit_to_window(input_ids, model.llm.n_ctx(), self.max_new_tokens)
+
+        complete_response = ""
+        generated_tokens = 0
+        self._cancel_requested = False
+        self._streaming = True
+        self.last_finish_reason = None
+
+        # Batch streamed text into fewer frames for the output adapter
+        coalescer = None
+        if self.output_adapter and hasattr(self.output_adapter, 'stream_chunk'):
+            coalescer = ChunkCoalescer(self.output_adapter.stream_chunk, self.stream_flush_interval_ms,
+                                       self.stream_flush_bytes, self.stream_stats)
+
+        from llama_cpp import StoppingCriteriaList
+
+        # llama.cpp asks after every token, including ones it holds back from the stream
+        stop_on_cancel = StoppingCriteriaList([lambda token_ids, logits: self._cancel_requested])
+
+        try:
+            with model.interactive():
+                start_time = time.time()
+                # Cancelled while waiting for another session's response to finish
+                completion = [] if self._cancel_requested else model.llm.create_completion(
+                    input_ids,
+                    max_tokens=max_new_tokens,
+                    temperature=self.temperature,
+                    top_p=self.top_p,
+                    top_k=self.top_k,
+                    stopping_criteria=stop_on_cancel,
+                    stream=True
+                )
+                for chunk in completion:
+                    if self._cancel_requested:
+                        break
+
+                    new_text = chunk['choices'][0]['text']
+                    self.last_finish_reason = chunk['choices'][0].get('finish_reason')
+                    generated_tokens += 1
+                    if not new_text:
+                        continue
+
+                    # Print to console if running in CLI mode
+                    print(new_text, end="", flush=True)
+
+                    # Stream to client if output adapter is available
+                    if coalescer is not None:
+                        coalescer.push(new_text)
+
+                    # Build up the complete response
+                    complete_response += new_text
+
+                model.record(len(input_ids), generated_tokens, time.time() - start_time)
+        finally:
+            self._streaming = False
+            if coalescer is not None:
+                coalescer.close()
+        if self._cancel_requested:
+            self.last_finish_reason = 'cancelled'
+
+        # Log the full response length for debugging
+        print(f"Complete response generated, length: {len(complete_response)}")
+
+        return complete_response
+
+    def generate_background(self, prompt: str, model: LlamaCppModel, tokenizer: LlamaCppTokenizer,
+                            max_new_tokens: int) -> Optional[str]:
+        """
+        Generate text nobody is waiting for, e.g. a history summary, without streaming it.
+        Runs only while the context is free and gives it up as soon as an interactive
+        request waits for it; returns None in that case. The context's key/values are
+        restored afterwards so the next turn still reuses its prompt prefix.
+        """
+        if model.waiting or not model.lock.acquire(blocking=False):
+            return None
+
+        text = ""
+        finished = False
+        try:
+            state = model.llm.save_state()
+            try:
+                input_ids = encode_prompt(prompt, tokenizer)
+                for chunk in model.llm.create_completion(
+                        input_ids,
+                        max_tokens=max_new_tokens,
+                        temperature=0.0,
+                        stream=True
+                ):
+                    if model.waiting:
+                        break
+                    text += chunk['choices'][0]['text']
+                    finished = chunk['choices'][0].get('finish_reason') is not None
+            finally:
+                model.llm.load_state(state)
+        except Exception as e:
+            print(f"Background generation failed: {str(e)}")
+            return None
+        finally:
+            model.lock.release()
+        return text if finished else None
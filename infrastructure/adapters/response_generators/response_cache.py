@@ -0,0 +1,148 @@
+# infrastructure/adapters/response_generators/response_cache.py
+import json
+import os
+import threading
+from collections import OrderedDict
+from pathlib import Path
+from typing import Optional
+
+
+class ResponseCache:
+    """
+    Complete responses keyed by a hash of the prompt, model and sampling settings.
+    Recently used entries live in memory up to max_memory_mb; every entry is also
+    written to cache_dir so it survives restarts, and the oldest files are removed
+    once the directory exceeds max_disk_mb.
+    """
+
+    def __init__(self, max_memory_mb: int = 64, cache_dir: Optional[str] = None, max_disk_mb: int = 512):
+        self.max_bytes = int((max_memory_mb or 0) * 1024 * 1024)
+        self.cache_dir = Path(cache_dir) if cache_dir else None
+        self.max_disk_bytes = int((max_disk_mb or 0) * 1024 * 1024)
+        self._entries: "OrderedDict[str, str]" = OrderedDict()  # key -> response
+        self._bytes_used = 0
+        self._disk_bytes: Optional[int] = None  # Counted on the first write
+        self._lock = threading.Lock()
+
+        # Metrics
+        self.lookups = 0
+        self.memory_hits = 0
+        self.disk_hits = 0
+        self.stores = 0
+        self.evictions = 0
+
+    def get(self, key: str) -> Optional[str]:
+        with self._lock:
+            self.lookups += 1
+            if key in self._entries:
+                self._entries.move_to_end(key)
+                self.memory_hits += 1
+                return self._entries[key]
+
+        response = self._read(key)
+        if response is not None:
+            with self._lock:
+                self.disk_hits += 1
+            self._remember(key, response)
+        return response
+
+    def put(self, key: str, response: str):
+        with self._lock:
+            self.stores += 1
+        self._remember(key, response)
+        self._write(key, response)
+
+    def stats(self) -> dict:
+        with self._lock:
+            hits = self.memory_hits + self.disk_hits
+            return {
+                'entries': len(self._entries),
+                'memory_mb': round(self._bytes_used / 1024 / 1024, 2),
+                'max_memory_mb': round(self.max_bytes / 1024 / 1024, 2),
+                'lookups': self.lookups,
+                'memory_hits': self.memory_hits,
+                'disk_hits': self.disk_hits,
+                'hit_rate': round(hits / self.lookups, 3) if self.lookups else 0.0,
+                'stores': self.stores,
+                'evictions': self.evictions
+            }
+
+    def _remember(self, key: str, response: str):
+        size = len(response.encode('utf-8'))
+        if size > self.max_bytes:
+            return
+        with self._lock:
+            if key in self._entries:
+                self._bytes_used -= len(self._entries.pop(key).encode('utf-8'))
+            self._entries[key] = response
+            self._bytes_used += size
+            # Least recently used entries go first
+            while self._bytes_used > self.max_bytes:
+                _, evicted = self._entries.popitem(last=False)
+                self._bytes_used -= len(evicted.encode('utf-8'))
+                self.evictions += 1
+
+    def _path(self, key: str) -> Path:
+        return self.cache_dir / key[:2] / f"{key}.json"
+
+    def _read(self, key: str) -> Optional[str]:
+        if self.cache_dir is None:
+            return None
+        path = self._path(key)
+        try:
+            with open(path, 'r', encoding='utf-8') as f:
+                response = json.load(f)['response']
+            os.utime(path)  # Mark as recently used for disk eviction
+            return response
+        except (OSError, ValueError, KeyError):
+            return None
+
+    def _write(self, key: str, response: str):
+        if self.cache_dir is None or not self.max_disk_bytes:
+            return
+        path = self._path(key)
+        try:
+            path.parent.mkdir(parents=True, exist_ok=True)
+            # Write to a temporary file first so readers never see half an entry
+            tmp_path = path.with_suffix('.tmp')
+            with open(tmp_path, 'w', encoding='utf-8') as f:
+                json.dump({'response': response}, f)
+            size = tmp_path.stat().st_size
+            old_size = path.stat().st_size if path.exists() else 0
+            os.replace(tmp_path, path)
+
+            with self._lock:
+                if self._disk_bytes is None:
+                    self._disk_bytes = sum(p.stat().st_size for p in self.cache_dir.glob('*/*.json'))
+                else:
+                    self._disk_bytes += size - old_size
+                over = self._disk_bytes > self.max_disk_bytes
+            if over:
+                self._trim_disk()
+        except OSError as e:
+            print(f"Error writing response cache entry: {str(e)}")
+
+    def _trim_disk(self):
+        """Remove the least recently used files until the directory is well under its cap"""
+        files = []
+        for path in self.cache_dir.glob('*/*.json'):
+            try:
+                stat = path.stat()
+                files.append((stat.st_mtime, stat.st_size, path))
+            except OSError:
+                pass
+        total = sum(size for _, size, _ in files)
+        # Leave some headroom so the next writes do not trim again right away
+        target = int(self.max_disk_bytes * 0.9)
+        for _, size, path in sorted(files):
+            if total <= target:
+                break
+            try:
+                path.unlink()
+                total -= size
+                with self._lock:
+                    self.evictions += 1
+            except OSError:
+                pass
+        with self._lock:
+            self._disk_bytes = total
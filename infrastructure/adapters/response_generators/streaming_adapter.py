@@ -1,67 +1,147 @@
 # infrastructure/adapters/response_generators/streaming_adapter.py
-from transformers import TextIteratorStreamer
-from threading import Thread
+from typing import Optional
 
+from application.services.context_packer import model_context_window
+from application.services.prompt_truncator import encode_prompt, fit_to_window
 from core.ports.response_generator_port import ResponseGeneratorPort
+from infrastructure.adapters.chat_output.chunk_coalescer import ChunkCoalescer, StreamStats
+from infrastructure.inference.generation_scheduler import GenerationScheduler
+from infrastructure.inference.sampling import SamplingParams
+from infrastructure.inference.speculative import DraftModelProposer, PromptLookupProposer
 
 
 class StreamingResponseAdapter(ResponseGeneratorPort):
-    def __init__(self):
+    def __init__(self, scheduler: GenerationScheduler, model_manager=None,
+                 speculative_mode: str = "draft", num_speculative_tokens: int = 4,
+                 prompt_lookup_tokens: int = 10, max_new_tokens: int = 5000,
+                 stream_timeout: float = 120.0, stream_flush_interval_ms: int = 50,
+                 stream_flush_bytes: int = 256, stream_stats: StreamStats = None):
         self.output_adapter = None
+        self.session_cache = None
+        self.current_request = None  # Request being streamed, so it can be cancelled
+        self.expected_tokens = None  # Predicted length of the next answer, for scheduling
+        self.last_finish_reason = None
+        self.scheduler = scheduler
+        self.model_manager = model_manager
+        self.speculative_mode = speculative_mode or "none"  # "draft", "prompt_lookup" or "none"
+        self.num_speculative_tokens = num_speculative_tokens or 4
+        self.prompt_lookup_tokens = prompt_lookup_tokens or 10
+        self.max_new_tokens = max_new_tokens
+        self.stream_timeout = stream_timeout or None  # Seconds without output before giving up
+        self.stream_flush_interval_ms = stream_flush_interval_ms
+        self.stream_flush_bytes = stream_flush_bytes
+        self.stream_stats = stream_stats
 
     def set_output_adapter(self, output_adapter):
         """Set the output adapter to use for streaming chunks"""
         self.output_adapter = output_adapter
 
-    def generate_response(self, prompt: str, model, tokenizer) -> str:
-        # Tokenize with attention mask
-        inputs = tokenizer(
-            prompt,
-            return_tensors="pt",
-            padding=True,
-            truncation=True,
-            return_attention_mask=True
-        ).to(model.device)
-
-        # Configure streamer
-        streamer = TextIteratorStreamer(
-            tokenizer,
-            skip_prompt=True,
-            skip_special_tokens=True
-        )
-
-        # Get pad token (use eos_token if not defined)
-        pad_token = tokenizer.pad_token_id or tokenizer.eos_token_id
-
-        generation_kwargs = dict(
-            input_ids=inputs.input_ids,
-            attention_mask=inputs.attention_mask,  # Add attention mask
-            max_new_tokens=5000,
-            do_sample=True,
-            pad_token_id=pad_token,  # Explicitly set pad token
-            streamer=streamer
-        )
-
-        thread = Thread(target=model.generate, kwargs=generation_kwargs)
-        thread.start()
+    def set_session_cache(self, session_cache):
+        """Set the KV cache that carries this conversation's past turns"""
+        self.session_cache = session_cache
 
-        # Collect the complete generated text
-        complete_response = ""
+    def set_expected_tokens(self, expected_tokens):
+        """Predicted length of the next answer; shorter ones are scheduled sooner"""
+        self.expected_tokens = expected_tokens
+
+    def cancel(self) -> bool:
+        """Stop the response being generated, if any"""
+        request = self.current_request
+        if request is None:
+            return False
+        request.cancel()
+        return True
+
+    def generate_response(self, prompt: str, model, tokenizer, prompt_token_ids=None) -> str:
+        # Tokenize the prompt unless the prompt builder already did; the scheduler builds attention masks itself
+        input_ids = list(prompt_token_ids) if prompt_token_ids is not None else encode_prompt(prompt, tokenizer)
 
-        for new_text in streamer:
-            # Print to console if running in CLI mode
-            print(new_text, end="", flush=True)
+        # The prompt was already fitted to the window; never let the answer run past it either
+        max_new_tokens = self.max_new_tokens
+        window = model_context_window(model, tokenizer)
+        if window:
+            input_ids, max_new_tokens = fit_to_window(input_ids, window, max_new_tokens)
 
-            # Stream to client if output adapter is available
-            if self.output_adapter and hasattr(self.output_adapter, 'stream_chunk'):
-                self.output_adapter.stream_chunk(new_text)
+        params = SamplingParams.from_model(model, max_new_tokens=max_new_tokens, do_sample=True)
 
-            # Build up the complete response
-            complete_response += new_text
+        proposer = self._create_proposer()
 
-        thread.join()
+        # Hand the prompt to the shared scheduler, which batches it with other sessions
+        session_id = getattr(self.output_adapter, 'current_room', None)
+        request = self.scheduler.submit(model, tokenizer, input_ids, params,
+                                        session_id=session_id, session_cache=self.session_cache,
+                                        proposer=proposer, expected_tokens=self.expected_tokens)
+        self.current_request = request
+        self.expected_tokens = None
+
+        # Collect the complete generated text
+        complete_response = ""
+        coalescer = self._create_coalescer()
+
+        try:
+            for new_text in request.stream(timeout=self.stream_timeout):
+                # Print to console if running in CLI mode
+                print(new_text, end="", flush=True)
+
+                # Stream to client if output adapter is available
+                if coalescer is not None:
+                    coalescer.push(new_text)
+
+                # Build up the complete response
+                complete_response += new_text
+        finally:
+            if coalescer is not None:
+                coalescer.close()
+            # Stop generating if streaming was interrupted
+            if request.finish_reason is None:
+                request.cancel()
+            self.current_request = None
+            self.last_finish_reason = request.finish_reason
 
         # Log the full response length for debugging
         print(f"Complete response generated, length: {len(complete_response)}")
 
-        return complete_response
\ No newline at end of file
+        return complete_response
+
+    def generate_background(self, prompt: str, model, tokenizer, max_new_tokens: int) -> Optional[str]:
+        """
+        Generate text nobody is waiting for, e.g. a history summary, without streaming it.
+        The scheduler runs it in idle time only; returns None if it was preempted or failed.
+        """
+        input_ids = encode_prompt(prompt, tokenizer)
+        params = SamplingParams.from_model(model, max_new_tokens=max_new_tokens, do_sample=False)
+        request = self.scheduler.submit(model, tokenizer, input_ids, params, background=True)
+
+        text = ""
+        try:
+            for new_text in request.stream(timeout=self.stream_timeout):
+                text += new_text
+        except Exception as e:
+            print(f"Background generation failed: {str(e)}")
+            return None
+        finally:
+            if request.finish_reason is None:
+                request.cancel()
+        return text if request.finish_reason in ('stop', 'length') else None
+
+    def _create_coalescer(self):
+        """Batch streamed text into fewer frames for the output adapter"""
+        if self.output_adapter and hasattr(self.output_adapter, 'stream_chunk'):
+            return ChunkCoalescer(self.output_adapter.stream_chunk, self.stream_flush_interval_ms,
+                                  self.stream_flush_bytes, self.stream_stats)
+        return None
+
+    def _create_proposer(self):
+        """Pick how draft tokens are proposed for speculative decoding, if at all"""
+        if self.speculative_mode == "prompt_lookup":
+            # Copy continuations out of the prompt; no second model needed
+            return PromptLookupProposer(self.prompt_lookup_tokens)
+
+        if self.speculative_mode == "draft":
+            # Let the draft model propose tokens for the target to verify, if one is loaded
+            draft_model = self.model_manager.get_draft_model() if self.model_manager else None
+            if draft_model is not None:
+                return DraftModelProposer(draft_model, self.num_speculative_tokens,
+                                          self.scheduler.prefill_chunk_tokens)
+
+        return None
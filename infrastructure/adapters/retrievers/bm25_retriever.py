@@ -0,0 +1,110 @@
+# infrastructure/adapters/retrievers/bm25_retriever.py
+import heapq
+import itertools
+import math
+import re
+import threading
+from collections import Counter
+from typing import Dict, List, Optional
+
+from application.services.code_chunker import CodeChunker
+from core.domain.models import CodeChunk
+from core.ports.context_retriever_port import ContextRetrieverPort
+
+_WORD = re.compile(r"[A-Za-z_][A-Za-z0-9_]*|\d+")
+_CAMEL_PART = re.compile(r"[A-Z]+(?=[A-Z][a-z])|[A-Z]?[a-z]+|[A-Z]+|\d+")
+
+
+def code_terms(text: str) -> List[str]:
+    """
+    Lowercase terms of text, with identifiers also split into their words:
+    parseHTTPResponse and parse_http_response both yield parse, http and response.
+    """
+    terms = []
+    for word in _WORD.findall(text):
+        parts = [part for piece in word.split("_") for part in _CAMEL_PART.findall(piece)]
+        if len(parts) > 1:
+            terms.append(word.lower())
+        terms.extend(part.lower() for part in parts if len(part) > 1)
+    return terms
+
+
+class Bm25Retriever(ContextRetrieverPort):
+    """
+    Lexical BM25 ranking of a conversation's project chunks, for deployments without an
+    embedding model. The inverted index is updated per file as files are added or
+    replaced, and a search only visits the postings of the query's terms.
+    """
+
+    def __init__(self, chunker: Optional[CodeChunker] = None, k1: float = 1.2, b: float = 0.75):
+        self.chunker = chunker or CodeChunker()
+        self.k1 = k1
+        self.b = b
+        self._ids = itertools.count()
+        self._chunks: Dict[int, CodeChunk] = {}  # chunk id -> chunk
+        self._lengths: Dict[int, int] = {}  # chunk id -> number of terms
+        self._terms: Dict[int, Counter] = {}  # chunk id -> term frequencies, to undo its postings
+        self._file_chunks: Dict[str, List[int]] = {}  # filename -> chunk ids
+        self._postings: Dict[str, Dict[int, int]] = {}  # term -> chunk id -> term frequency
+        self._total_length = 0
+        self._lock = threading.Lock()
+
+    def index_file(self, filename: str, content: str):
+        self.index_chunks(filename, self.chunker.chunk(filename, content))
+
+    def index_chunks(self, filename: str, chunks: List[CodeChunk]):
+        """Index a file that is already split into chunks"""
+        # Path words match questions that name a module or file
+        path_terms = code_terms(filename)
+        counted = [Counter(code_terms(chunk.text) + path_terms) for chunk in chunks]
+
+        with self._lock:
+            self._remove(filename)
+            ids = []
+            for chunk, terms in zip(chunks, counted):
+                chunk_id = next(self._ids)
+                ids.append(chunk_id)
+                self._chunks[chunk_id] = chunk
+                self._terms[chunk_id] = terms
+                length = sum(terms.values())
+                self._lengths[chunk_id] = length
+                self._total_length += length
+                for term, frequency in terms.items():
+                    self._postings.setdefault(term, {})[chunk_id] = frequency
+            self._file_chunks[filename] = ids
+
+    def remove_file(self, filename: str):
+        with self._lock:
+            self._remove(filename)
+
+    def search(self, query: str, top_k: int) -> List[CodeChunk]:
+        terms = set(code_terms(query))
+        if not terms or top_k <= 0:
+            return []
+
+        with self._lock:
+            count = len(self._chunks)
+            if not count:
+                return []
+            avg_length = self._total_length / count
+            matched = [(term, self._postings[term]) for term in terms if term in self._postings]
+            # Terms in most chunks barely change the ranking but have the longest postings
+            rare = [(term, postings) for term, postings in matched if len(postings) <= count // 2]
+            scores: Dict[int, float] = {}
+            for term, postings in rare or matched:
+                idf = math.log(1 + (count - len(postings) + 0.5) / (len(postings) + 0.5))
+                for chunk_id, frequency in postings.items():
+                    norm = self.k1 * (1 - self.b + self.b * self._lengths[chunk_id] / avg_length)
+                    scores[chunk_id] = scores.get(chunk_id, 0.0) + idf * frequency * (self.k1 + 1) / (frequency + norm)
+            top = heapq.nlargest(top_k, scores.items(), key=lambda item: item[1])
+            return [self._chunks[chunk_id] for chunk_id, _ in top]
+
+    def _remove(self, filename: str):
+        for chunk_id in self._file_chunks.pop(filename, []):
+            del self._chunks[chunk_id]
+            self._total_length -= self._lengths.pop(chunk_id)
+            for term in self._terms.pop(chunk_id):
+                postings = self._postings[term]
+                del postings[chunk_id]
+                if not postings:
+                    del self._postings[term]
@@ -0,0 +1,88 @@
+# infrastructure/adapters/retrievers/embedding_retriever.py
+import threading
+from typing import Dict, List, Optional, Tuple
+
+import torch
+
+from application.services.code_chunker import CodeChunker
+from core.domain.models import CodeChunk
+from core.ports.context_retriever_port import ContextRetrieverPort
+from infrastructure.adapters.retrievers.bm25_retriever import Bm25Retriever
+from infrastructure.inference.text_embedder import TextEmbedder
+
+
+class EmbeddingRetriever(ContextRetrieverPort):
+    """
+    Ranks chunks of a conversation's project files by embedding similarity to a query.
+    Files are chunked when they are indexed and embedded on the next search, so a burst
+    of uploads costs one batched pass; the shared embedder caches vectors by content.
+    If the embedding model cannot be loaded, searches fall back to BM25 over the same chunks.
+    """
+
+    def __init__(self, embedder: TextEmbedder, chunker: Optional[CodeChunker] = None,
+                 fallback: Optional[Bm25Retriever] = None):
+        self.embedder = embedder
+        self.chunker = chunker or CodeChunker()
+        self.fallback = fallback
+        self._fallback_indexed = False  # Files are indexed into fallback once it is needed
+        self._files: Dict[str, Tuple[List[CodeChunk], Optional[torch.Tensor]]] = {}  # filename -> chunks, vectors
+        self._lock = threading.Lock()
+
+    def index_file(self, filename: str, content: str):
+        chunks = self.chunker.chunk(filename, content)
+        with self._lock:
+            self._files[filename] = (chunks, None)
+            if self._fallback_indexed:
+                self.fallback.index_chunks(filename, chunks)
+
+    def remove_file(self, filename: str):
+        with self._lock:
+            self._files.pop(filename, None)
+            if self._fallback_indexed:
+                self.fallback.remove_file(filename)
+
+    def search(self, query: str, top_k: int) -> List[CodeChunk]:
+        if not query.strip() or top_k <= 0:
+            return []
+        if not self.embedder.available:
+            return self._fallback_search(query, top_k)
+        try:
+            self._embed_pending()
+            query_vector = self.embedder.embed([query])[0]
+        except Exception as e:
+            print(f"Error embedding for retrieval: {str(e)}")
+            return [] if self.embedder.available else self._fallback_search(query, top_k)
+
+        with self._lock:
+            indexed = [(chunks, vectors) for chunks, vectors in self._files.values() if chunks and vectors is not None]
+        if not indexed:
+            return []
+
+        chunks = [chunk for file_chunks, _ in indexed for chunk in file_chunks]
+        scores = torch.cat([vectors for _, vectors in indexed]) @ query_vector
+        top = torch.topk(scores, min(top_k, len(chunks))).indices.tolist()
+        return [chunks[i] for i in top]
+
+    def _fallback_search(self, query: str, top_k: int) -> List[CodeChunk]:
+        """Rank lexically for the rest of the process, or not at all without a fallback"""
+        if self.fallback is None:
+            return []
+        with self._lock:
+            if not self._fallback_indexed:
+                for filename, (chunks, _) in self._files.items():
+                    self.fallback.index_chunks(filename, chunks)
+                self._fallback_indexed = True
+        return self.fallback.search(query, top_k)
+
+    def _embed_pending(self):
+        """Embed the chunks of files indexed since the last search"""
+        with self._lock:
+            pending = {filename: chunks for filename, (chunks, vectors) in self._files.items()
+                       if chunks and vectors is None}
+        for filename, chunks in pending.items():
+            # The filename tells the encoder what the code belongs to
+            vectors = self.embedder.embed([f"{chunk.filename}\n{chunk.text}" for chunk in chunks])
+            with self._lock:
+                # Skip files replaced or removed meanwhile
+                if self._files.get(filename, (None,))[0] is chunks:
+                    self._files[filename] = (chunks, vectors)
@@ -1,16 +1,32 @@
 # infrastructure/di/container.py
 from dependency_injector import containers, providers
 
+from application.services.code_chunker import CodeChunker
+from application.services.context_packer import ContextPacker
+from application.services.history_summarizer import HistorySummarizer
+from application.services.prompt_truncator import PromptTruncator
 from application.use_cases.conversation import ConversationUseCase
 from core.domain.models import AnalysisConfig
+from infrastructure.adapters.chat_output.chunk_coalescer import StreamStats
 from infrastructure.adapters.chat_output.cli_adapter import CLIChatAdapter
 from infrastructure.adapters.chat_output.web_adapter import WebChatAdapter
 from infrastructure.adapters.file_handlers.local_file_adapter import LocalFileAdapter
 from infrastructure.adapters.file_handlers.web_file_adapter import WebFileAdapter
 from infrastructure.adapters.model_loaders.huggingface_adapter import HuggingFaceModelAdapter
+from infrastructure.adapters.model_loaders.llama_cpp_manager import LlamaCppModelAdapter, LlamaCppModelManager
 from infrastructure.adapters.model_loaders.model_manager import ModelManager
-from infrastructure.adapters.prompt_builders.conversation_adapter import ModelAwarePromptAdapter
+from infrastructure.adapters.model_loaders.prefix_cache import RadixPrefixCache
+from infrastructure.adapters.prompt_builders.incremental_adapter import IncrementalPromptAdapter
+from infrastructure.adapters.response_generators.caching_adapter import CachingResponseGenerator
+from infrastructure.adapters.response_generators.llama_cpp_adapter import LlamaCppResponseAdapter
+from infrastructure.adapters.response_generators.response_cache import ResponseCache
 from infrastructure.adapters.response_generators.streaming_adapter import StreamingResponseAdapter
+from infrastructure.adapters.retrievers.bm25_retriever import Bm25Retriever
+from infrastructure.adapters.retrievers.embedding_retriever import EmbeddingRetriever
+from infrastructure.inference.generation_scheduler import GenerationScheduler
+from infrastructure.inference.inference_executor import InferenceExecutor
+from infrastructure.inference.kv_cache import SessionKVCachePool
+from infrastructure.inference.text_embedder import TextEmbedder
 
 
 class Container(containers.DeclarativeContainer):
@@ -22,23 +38,66 @@ class Container(containers.DeclarativeContainer):
     analysis_config = providers.Factory(
         AnalysisConfig,
         max_history_length=config.max_history_length,
-        default_temp=config.default_temp
+        default_temp=config.default_temp,
+        summary_max_tokens=config.summary_max_tokens,
+        retrieval_top_k=config.retrieval_top_k
     )
 
-    # Model manager (singleton)
-    model_manager = providers.Singleton(ModelManager)
+    # Model manager (singleton) for the configured backend: "huggingface" or "llama_cpp"
+    model_manager = providers.Selector(
+        config.backend,
+        huggingface=providers.Singleton(ModelManager),
+        llama_cpp=providers.Singleton(LlamaCppModelManager)
+    )
+
+    # KV cache of prompt prefixes shared across sessions (singleton)
+    prefix_cache = providers.Singleton(
+        RadixPrefixCache,
+        max_memory_mb=config.prefix_cache_mb
+    )
+
+    # Bounds the key/values sessions keep between turns (singleton)
+    session_kv_caches = providers.Singleton(
+        SessionKVCachePool,
+        max_memory_mb=config.session_cache_mb
+    )
 
     # Model initialization function
-    initialize_model = providers.Callable(
-        lambda model_manager, model_name: model_manager.initialize(model_name),
-        model_manager=model_manager,
-        model_name=config.model_name
+    initialize_model = providers.Selector(
+        config.backend,
+        huggingface=providers.Callable(
+            lambda model_manager, model_name, draft_model_name, quantization: model_manager.initialize(
+                model_name, draft_model_name, quantization),
+            model_manager=model_manager,
+            model_name=config.model_name,
+            draft_model_name=config.draft_model_name,
+            quantization=config.quantization
+        ),
+        llama_cpp=providers.Callable(
+            lambda model_manager, model_path, n_ctx, n_threads, n_gpu_layers: model_manager.initialize(
+                model_path, n_ctx, n_threads, n_gpu_layers),
+            model_manager=model_manager,
+            model_path=config.gguf_model_path,
+            n_ctx=config.gguf_n_ctx,
+            n_threads=config.gguf_n_threads,
+            n_gpu_layers=config.gguf_n_gpu_layers
+        )
     )
 
     # Model loader
-    model_loader = providers.Factory(
-        HuggingFaceModelAdapter,
-        model_name=config.model_name
+    model_loader = providers.Selector(
+        config.backend,
+        huggingface=providers.Factory(
+            HuggingFaceModelAdapter,
+            model_name=config.model_name
+        ),
+        llama_cpp=providers.Factory(
+            LlamaCppModelAdapter,
+            model_path=config.gguf_model_path,
+            n_ctx=config.gguf_n_ctx,
+            n_threads=config.gguf_n_threads,
+            n_gpu_layers=config.gguf_n_gpu_layers
+        )
     )
 
     # File handler
@@ -48,8 +107,96 @@ class Container(containers.DeclarativeContainer):
         web=providers.Factory(WebFileAdapter)
     )
 
-    prompt_builder = providers.Factory(ModelAwarePromptAdapter)
-    response_generator = providers.Factory(StreamingResponseAdapter)
+    # Generation scheduler shared by every session (singleton)
+    generation_scheduler = providers.Singleton(
+        GenerationScheduler,
+        max_batch_size=config.max_batch_size,
+        prefix_cache=prefix_cache,
+        kv_cache_budget_mb=config.kv_cache_budget_mb,
+        time_slice_ms=config.time_slice_ms,
+        prefill_chunk_tokens=config.prefill_chunk_tokens,
+        session_caches=session_kv_caches
+    )
+
+    # Worker pool the web entrypoint runs model loading and messages on (singleton)
+    inference_executor = providers.Singleton(
+        InferenceExecutor,
+        max_workers=config.inference_workers,
+        max_queue=config.inference_queue_size
+    )
+
+    # Frames per streamed response (singleton)
+    stream_stats = providers.Singleton(StreamStats)
+
+    # Token counts of project files, shared by every session (singleton)
+    context_packer = providers.Singleton(ContextPacker)
+
+    prompt_truncator = providers.Factory(PromptTruncator)
+
+    # Summarizes evicted history in idle time, one job at a time across sessions (singleton)
+    history_summarizer = providers.Singleton(
+        HistorySummarizer,
+        max_summary_tokens=config.summary_max_tokens
+    )
+
+    # Splits files into functions, classes and blocks, cached by content across sessions (singleton)
+    code_chunker = providers.Singleton(CodeChunker)
+
+    # CPU encoder for retrieval, with vectors cached across sessions (singleton)
+    text_embedder = providers.Singleton(
+        TextEmbedder,
+        model_name=config.retrieval_model_name
+    )
+
+    # Index of each conversation's project files: "embedding", "bm25" or "none"
+    context_retriever = providers.Selector(
+        config.retriever,
+        embedding=providers.Factory(EmbeddingRetriever, embedder=text_embedder, chunker=code_chunker,
+                                    fallback=providers.Factory(Bm25Retriever, chunker=code_chunker)),
+        bm25=providers.Factory(Bm25Retriever, chunker=code_chunker),
+        none=providers.Object(None)
+    )
+
+    # Caches each template segment per tokenizer, shared by every session (singleton)
+    prompt_builder = providers.Singleton(IncrementalPromptAdapter)
+    base_response_generator = providers.Selector(
+        config.backend,
+        huggingface=providers.Factory(
+            StreamingResponseAdapter,
+            scheduler=generation_scheduler,
+            model_manager=model_manager,
+            speculative_mode=config.speculative_mode,
+            num_speculative_tokens=config.num_speculative_tokens,
+            prompt_lookup_tokens=config.prompt_lookup_tokens,
+            stream_timeout=config.stream_timeout,
+            stream_flush_interval_ms=config.stream_flush_interval_ms,
+            stream_flush_bytes=config.stream_flush_bytes,
+            stream_stats=stream_stats
+        ),
+        llama_cpp=providers.Factory(
+            LlamaCppResponseAdapter,
+            temperature=config.default_temp,
+            stream_flush_interval_ms=config.stream_flush_interval_ms,
+            stream_flush_bytes=config.stream_flush_bytes,
+            stream_stats=stream_stats
+        )
+    )
+
+    # Complete answers to repeated prompts, shared by every session (singleton)
+    response_cache = providers.Singleton(
+        ResponseCache,
+        max_memory_mb=config.response_cache_mb,
+        cache_dir=config.response_cache_dir,
+        max_disk_mb=config.response_cache_disk_mb
+    )
+
+    # Answers identical requests from the cache when enabled; sampled answers would otherwise vary
+    response_generator = providers.Callable(
+        lambda generator, cache, enabled: CachingResponseGenerator(generator, cache()) if enabled else generator,
+        generator=base_response_generator,
+        cache=response_cache.provider,
+        enabled=config.response_cache
+    )
 
     chat_output = providers.Selector(
         config.context,
@@ -63,5 +210,9 @@ class Container(containers.DeclarativeContainer):
         output_port=chat_output,
         response_generator=response_generator,
         prompt_builder=prompt_builder,
-        config=analysis_config
+        config=analysis_config,
+        context_packer=context_packer,
+        prompt_truncator=prompt_truncator,
+        history_summarizer=history_summarizer,
+        context_retriever=context_retriever
     )
\ No newline at end of file
@@ -0,0 +1,850 @@
+# infrastructure/inference/generation_scheduler.py
+import itertools
+import queue
+import threading
+import time
+from collections import deque
+from dataclasses import replace
+from typing import Deque, Dict, Iterator, List, Optional
+
+import torch
+from transformers import DynamicCache
+
+from infrastructure.adapters.model_loaders.prefix_cache import RadixPrefixCache
+from infrastructure.inference.kv_cache import (
+    BatchedKVCache, SessionKVCache, SessionKVCachePool, available_kv_memory, cache_length, cache_nbytes,
+    kv_bytes_per_token, move_cache
+)
+from infrastructure.inference.sampling import (
+    SamplingParams, IncrementalDetokenizer, get_eos_token_ids, sample_token
+)
+from infrastructure.inference.speculative import Proposer, verify_proposal
+
+DEFAULT_EXPECTED_TOKENS = 400  # Assumed answer length when the caller gives no prediction
+PREFILL_TOKEN_COST = 0.05  # A prefilled prompt token costs a fraction of a decoded one
+
+
+class GenerationRequest:
+    """A single prompt being generated by the scheduler"""
+    _ids = itertools.count(1)
+
+    def __init__(self, model, tokenizer, input_ids: List[int], params: SamplingParams,
+                 session_id: Optional[str] = None, session_cache: Optional[SessionKVCache] = None,
+                 proposer: Optional[Proposer] = None, background: bool = False,
+                 expected_tokens: Optional[int] = None):
+        self.request_id = next(self._ids)
+        self.model = model
+        self.tokenizer = tokenizer
+        self.input_ids = list(input_ids)
+        self.params = params
+        self.session_id = session_id
+        self.session_cache = session_cache
+        self.reused_tokens = 0  # Prompt tokens served from the session or prefix cache
+        self.proposer = proposer
+        self.background = background  # Only runs while no interactive request needs the model
+        # Predicted answer length; short requests are served ahead of long ones
+        self.expected_tokens = min(expected_tokens or DEFAULT_EXPECTED_TOKENS, params.max_new_tokens)
+        self.cost = len(self.input_ids) * PREFILL_TOKEN_COST + self.expected_tokens
+        self.finish_tag = 0.0  # Virtual finish time used to order waiting requests
+        self.cache: Optional[DynamicCache] = None  # Own KV cache while prefilling or decoding speculatively
+
+        self.eos_token_ids = get_eos_token_ids(model, tokenizer)
+        self.detokenizer = IncrementalDetokenizer(tokenizer, self.eos_token_ids)
+        self.output_ids: List[int] = []
+        self.position = 0  # Position id of the next token fed to the model
+        self.last_token: Optional[int] = None
+        self.finish_reason: Optional[str] = None
+        self.cancelled = False  # Checked by the scheduler before every step
+        self.deferred = False  # Waited for key/value memory at least once
+        self.admission_error: Optional[Exception] = None  # Set when the request can never fit
+        self.worker: Optional[threading.Thread] = None  # Scheduler thread serving this request
+        self.paused_cache: Optional[DynamicCache] = None  # Key/values kept while preempted
+        self.paused_devices: List[torch.device] = []  # Device of every cache layer before pausing
+        self.slice_started_at: Optional[float] = None  # When the request last got the model
+
+        self.submitted_at = time.time()
+        self.started_at: Optional[float] = None
+        self.first_token_at: Optional[float] = None
+        self.finished_at: Optional[float] = None
+
+        self._events: queue.Queue = queue.Queue()
+
+    def stream(self, timeout: Optional[float] = None) -> Iterator[str]:
+        """
+        Yield text deltas as the scheduler produces them.
+        Raises TimeoutError when a started request makes no progress for timeout seconds,
+        or when the scheduler thread died while the request was still queued. Each prefilled
+        chunk of the prompt counts as progress, so long prompts do not time out.
+        """
+        while True:
+            try:
+                kind, payload = self._events.get(timeout=timeout)
+            except queue.Empty:
+                # Waiting for a batch slot, or to be resumed, is fine as long as the scheduler is alive
+                waiting = self.started_at is None or self.paused_cache is not None
+                if waiting and self.worker is not None and self.worker.is_alive():
+                    continue
+                self.cancel()
+                raise TimeoutError(f"No output from generation for {timeout} seconds")
+
+            if kind == 'progress':
+                continue
+            if kind == 'text':
+                yield payload
+            elif kind == 'error':
+                raise payload
+            else:
+                return
+
+    def cancel(self):
+        """Ask the scheduler to stop this request; takes effect before its next step"""
+        self.cancelled = True
+
+    def emit(self, text: str):
+        if text:
+            self._events.put(('text', text))
+
+    def progress(self):
+        """Note work done that yields no text yet, e.g. a prefilled chunk"""
+        self._events.put(('progress', None))
+
+    def finish(self, reason: str):
+        self.finish_reason = reason
+        self.finished_at = time.time()
+        self._events.put(('done', None))
+
+    def fail(self, error: Exception):
+        self.finish_reason = 'error'
+        self.finished_at = time.time()
+        self._events.put(('error', RuntimeError(f"Generation failed: {str(error)}")))
+
+
+class GenerationScheduler:
+    """
+    Central decode loop shared by all sessions. Prompts are prefilled in chunks, then
+    decoded together in one batch that requests join and leave between steps.
+    Waiting requests are ordered by fair queuing over sessions and admitted while their
+    estimated key/values fit the memory budget; a full batch or budget pauses the request
+    furthest ahead of its share once it has used its time slice.
+    """
+
+    def __init__(self, max_batch_size: int = 8, prefix_cache: Optional[RadixPrefixCache] = None,
+                 max_speculative_requests: int = 2, throughput_window: float = 10.0,
+                 kv_cache_budget_mb: Optional[int] = None, time_slice_ms: Optional[int] = 2000,
+                 prefill_chunk_tokens: Optional[int] = 512, session_caches: Optional[SessionKVCachePool] = None):
+        self.max_batch_size = max_batch_size or 8
+        self.prefill_chunk_tokens = prefill_chunk_tokens or 0  # 0 prefills whole prompts at once
+        self._keep_last_logits = True  # Cleared if the model does not take logits_to_keep
+        self.time_slice = (time_slice_ms or 0) / 1000  # 0 never pauses running requests
+        self.kv_cache_budget_mb = kv_cache_budget_mb  # None or 0 detects the budget on first use
+        self._kv_budget: Optional[int] = None  # Bytes, as of the last admission
+        self._kv_per_token: Dict[int, Optional[int]] = {}  # id(model) -> key/value bytes per token
+        self._virtual_time = 0.0  # Start tag of the request admitted last
+        self._session_tags: Dict[str, float] = {}  # Session -> finish tag of its latest request
+        self.prefix_cache = prefix_cache
+        self.session_caches = session_caches  # Idle session key/values, dropped when requests need the memory
+        self.max_speculative_requests = max_speculative_requests
+        self.throughput_window = throughput_window
+
+        self._waiting: Deque[GenerationRequest] = deque()
+        self._running: List[GenerationRequest] = []
+        self._speculating: List[GenerationRequest] = []
+        self._prefilling: List[GenerationRequest] = []  # Admitted, prompt partly through the model
+        self._batch = BatchedKVCache()
+        self._model = None  # Model the running batch belongs to
+
+        self._condition = threading.Condition()
+        self._thread: Optional[threading.Thread] = None
+
+        # Metrics
+        self.total_requests = 0
+        self.completed_requests = 0
+        self.failed_requests = 0
+        self.cancelled_requests = 0
+        self.background_requests = 0
+        self.preempted_background = 0
+        self.deferred_requests = 0  # Waited for memory instead of being admitted right away
+        self.clamped_requests = 0  # Ran alone with fewer new tokens than asked for
+        self.rejected_requests = 0  # Prompt alone exceeded the memory budget
+        self.reclaimed_bytes = 0  # Cached key/values dropped to admit requests
+        self.preemptions = 0  # Running requests paused for a waiting one
+        self.resumptions = 0
+        self.generated_tokens = 0
+        self.decode_steps = 0
+        self.decoded_rows = 0
+        self.prefilled_tokens = 0
+        self.prefill_chunks = 0
+        self.reused_tokens = 0
+        self.first_token_latency_total = 0.0
+        self.first_token_count = 0
+        self._first_token_latencies: Deque[float] = deque(maxlen=200)  # Interactive requests only
+        self._speculation: Dict[str, Dict[str, int]] = {}  # Per proposer: steps, proposed, accepted
+        self._token_log: Deque = deque()  # (timestamp, tokens) for throughput
+
+    def submit(self, model, tokenizer, input_ids: List[int], params: SamplingParams,
+               session_id: Optional[str] = None,
+               session_cache: Optional[SessionKVCache] = None,
+               proposer: Optional[Proposer] = None, background: bool = False,
+               expected_tokens: Optional[int] = None) -> GenerationRequest:
+        """
+        Queue a prompt for generation and return a handle to stream its output.
+        When a session cache is given, the prompt prefix it already covers is not
+        prefilled again and the finished turn is stored back into it. A proposer
+        switches the request to speculative decoding. Background requests wait for
+        idle time and may be cancelled in favour of interactive ones. expected_tokens,
+        the predicted answer length, decides how soon the request is served.
+        """
+        if not input_ids:
+            raise ValueError("Cannot generate from an empty prompt")
+
+        request = GenerationRequest(model, tokenizer, input_ids, params, session_id, session_cache, proposer,
+                                    background, expected_tokens)
+        with self._condition:
+            # A session's next request starts where its previous one finishes in virtual time
+            start = max(self._virtual_time, self._session_tags.get(session_id, 0.0))
+            request.finish_tag = start + request.cost
+            if session_id is not None:
+                self._session_tags[session_id] = request.finish_tag
+            self._waiting.append(request)
+            self.total_requests += 1
+            if background:
+                self.background_requests += 1
+            self._ensure_thread()
+            request.worker = self._thread
+            self._condition.notify()
+        return request
+
+    def stats(self) -> dict:
+        """Snapshot of scheduler metrics"""
+        with self._condition:
+            now = time.time()
+            while self._token_log and now - self._token_log[0][0] > self.throughput_window:
+                self._token_log.popleft()
+            recent_tokens = sum(count for _, count in self._token_log)
+
+            return {
+                'waiting': len(self._waiting),
+                'running': len(self._active()),
+                'prefilling': len(self._prefilling),
+                'max_batch_size': self.max_batch_size,
+                'total_requests': self.total_requests,
+                'completed_requests': self.completed_requests,
+                'failed_requests': self.failed_requests,
+                'cancelled_requests': self.cancelled_requests,
+                'background_requests': self.background_requests,
+                'preempted_background': self.preempted_background,
+                'kv_budget_mb': round(self._kv_budget / 2 ** 20, 1) if self._kv_budget else None,
+                'kv_estimated_peak_mb': round(self._kv_peak_bytes() / 2 ** 20, 1),
+                'kv_reclaimed_mb': round(self.reclaimed_bytes / 2 ** 20, 1),
+                'deferred_requests': self.deferred_requests,
+                'clamped_requests': self.clamped_requests,
+                'rejected_requests': self.rejected_requests,
+                'paused': sum(1 for r in self._waiting if r.paused_cache is not None),
+                'preemptions': self.preemptions,
+                'resumptions': self.resumptions,
+                'generated_tokens': self.generated_tokens,
+                'decode_steps': self.decode_steps,
+                'avg_batch_size': round(self.decoded_rows / self.decode_steps, 2) if self.decode_steps else 0.0,
+                'tokens_per_second': round(recent_tokens / self.throughput_window, 2),
+                'prefilled_tokens': self.prefilled_tokens,
+                'prefill_chunks': self.prefill_chunks,
+                'reused_prompt_tokens': self.reused_tokens,
+                'avg_time_to_first_token': round(
+                    self.first_token_latency_total / self.first_token_count, 3) if self.first_token_count else 0.0,
+                'p95_time_to_first_token': self._percentile(self._first_token_latencies, 0.95),
+                'speculation': {
+                    name: {
+                        **counts,
+                        'acceptance_rate': round(
+                            counts['accepted'] / counts['proposed'], 3) if counts['proposed'] else 0.0,
+                        'tokens_per_step': round((counts['accepted'] + counts['steps']) / counts['steps'], 2)
+                    }
+                    for name, counts in self._speculation.items()
+                }
+            }
+
+    def _ensure_thread(self):
+        """Start the decode loop on first use"""
+        if self._thread is None or not self._thread.is_alive():
+            self._thread = threading.Thread(target=self._run, name="generation-scheduler", daemon=True)
+            self._thread.start()
+
+    def _run(self):
+        while True:
+            with self._condition:
+                while not self._waiting and not self._active():
+                    self._condition.wait()
+
+            try:
+                with torch.inference_mode():
+                    self._preempt_background()
+                    self._preempt_for_waiting()
+                    self._reap_cancelled()
+                    self._admit_waiting()
+                    if self._prefilling:
+                        self._prefill_step()
+                    if self._running:
+                        self._decode_step()
+                    for request in list(self._speculating):
+                        self._speculative_step(request)
+            except Exception as e:
+                print(f"Error in generation scheduler: {str(e)}")
+                import traceback
+                traceback.print_exc()
+                self._fail_running(e)
+
+    def _active(self) -> List[GenerationRequest]:
+        """Requests holding a batch slot"""
+        return self._prefilling + self._running + self._speculating
+
+    def _release_model(self):
+        """Let requests for another model in once nothing uses the batch"""
+        if not self._running and not self._prefilling:
+            self._model = None
+
+    def _next_waiting(self) -> Optional[GenerationRequest]:
+        """Pop the waiting request with the earliest fair-share finish tag, interactive ones first"""
+        with self._condition:
+            active = self._active()
+            idle = not active or all(r.background for r in active)
+            for background in (False, True):
+                # Background work starts only when nothing else is queued or running, one at a time
+                if background and (not idle or any(r.background for r in active)):
+                    return None
+                # A batch only ever holds sequences of one model
+                candidates = [r for r in self._waiting if r.background == background
+                              and (self._model is None or r.model is self._model)]
+                if not candidates:
+                    continue
+                request = min(candidates, key=lambda r: r.finish_tag)
+                # The chosen request holds back the others until memory frees up, so it is never starved
+                if not self._fits_memory(request):
+                    return None
+                self._waiting.remove(request)
+                self._advance_virtual_time(request)
+                return request
+            return None
+
+    def _advance_virtual_time(self, request: GenerationRequest):
+        """Move virtual time to the admitted request's start and forget sessions that fell behind it"""
+        self._virtual_time = max(self._virtual_time, request.finish_tag - request.cost)
+        # Idle sessions restart at the current virtual time anyway
+        for session_id in [s for s, tag in self._session_tags.items() if tag <= self._virtual_time]:
+            del self._session_tags[session_id]
+
+    def _fits_memory(self, request: GenerationRequest) -> bool:
+        """Whether the request's peak key/values fit the budget next to the active requests"""
+        per_token = self._bytes_per_token(request.model)
+        budget = self._memory_budget(request.model)
+        if per_token is None or budget is None:
+            return True
+        peak = self._kv_peak_bytes(request)
+        if peak <= budget:
+            return True
+        # Idle session and prefix key/values are worth less than a waiting request
+        retained = self._retained_bytes(keep=request.session_cache)
+        if retained and (peak - budget <= retained or not self._active()):
+            budget += self._reclaim(peak - budget, keep=request.session_cache)
+            self._kv_budget = budget
+            if peak <= budget:
+                return True
+
+        if self._active():
+            if not request.deferred:
+                request.deferred = True
+                self.deferred_requests += 1
+            return False
+
+        # Too large even on its own: generate what fits instead of running out of memory
+        max_new_tokens = budget // per_token - len(request.input_ids)
+        if max_new_tokens < 1:
+            self.rejected_requests += 1
+            request.admission_error = MemoryError(
+                f"Prompt of {len(request.input_ids)} tokens needs more key/value memory than the "
+                f"budget of {budget / 2 ** 20:.0f} MB")
+        else:
+            print(f"Request {request.request_id} limited to {max_new_tokens} new tokens by the key/value memory budget")
+            request.params = replace(request.params, max_new_tokens=max_new_tokens)
+            self.clamped_requests += 1
+        return True
+
+    def _kv_peak_bytes(self, request: Optional[GenerationRequest] = None) -> int:
+        """
+        Key/value memory active requests, plus request if given, are expected to reach before finishing.
+        Each answer is assumed to be as long as predicted; requests that run longer are paused
+        when a waiting request no longer fits. Batch rows are left-padded to the longest row,
+        so the batch costs rows x longest peak.
+        """
+        # Prompts being prefilled join the batch once done
+        rows = self._prefilling + self._running + ([request] if request is not None else [])
+        # Paused key/values that stayed on the model's device keep their memory until resumed
+        paused = self._paused_resident_bytes(exclude=request)
+        if not rows and not self._speculating:
+            return paused
+        model = request.model if request is not None else (self._model or self._speculating[0].model)
+        per_token = self._bytes_per_token(model) or 0
+
+        batch = 0
+        if rows:
+            lengths = [max(r.position, len(r.input_ids)) for r in rows]
+            batch = len(rows) * (max(lengths) + max(self._remaining_tokens(r) for r in rows))
+        speculative = sum(r.position + self._remaining_tokens(r) for r in self._speculating)
+        # Draft models keep a cache of their own for every speculating request
+        drafts = sum(self._draft_peak_bytes(r) for r in rows + self._speculating)
+        return (batch + speculative) * per_token + drafts + paused
+
+    def _draft_peak_bytes(self, request: GenerationRequest) -> int:
+        draft_model = getattr(request.proposer, 'draft_model', None)
+        if draft_model is None:
+            return 0
+        length = max(request.position, len(request.input_ids)) + self._remaining_tokens(request)
+        return length * (self._bytes_per_token(draft_model) or 0)
+
+    @staticmethod
+    def _remaining_tokens(request: GenerationRequest) -> int:
+        """Answer tokens the request is still expected to generate"""
+        return max(min(request.expected_tokens, request.params.max_new_tokens) - len(request.output_ids), 0)
+
+    def _held_bytes(self) -> int:
+        """Key/value memory the active requests hold right now"""
+        held = self._batch.nbytes()
+        for request in self._prefilling + self._speculating:
+            held += cache_nbytes(request.cache) + cache_nbytes(getattr(request.proposer, 'cache', None))
+        return held + self._paused_resident_bytes()
+
+    def _paused_resident_bytes(self, exclude: Optional[GenerationRequest] = None) -> int:
+        """Key/value memory of paused requests whose layers were left on their device, e.g. on CPU-only hosts"""
+        with self._condition:
+            paused = [r for r in self._waiting if r.paused_cache is not None and r is not exclude]
+        return sum(k.numel() * k.element_size() + v.numel() * v.element_size()
+                   for r in paused
+                   for k, v, device in zip(r.paused_cache.key_cache, r.paused_cache.value_cache, r.paused_devices)
+                   if k.device == device)
+
+    def _retained_bytes(self, keep: Optional[SessionKVCache] = None) -> int:
+        """Key/value memory kept for later turns and shared prefixes, other than keep's"""
+        retained = self.prefix_cache.nbytes() if self.prefix_cache is not None else 0
+        if self.session_caches is not None:
+            retained += self.session_caches.nbytes() - (keep.nbytes() if keep is not None else 0)
+        return retained
+
+    def _reclaim(self, nbytes: int, keep: Optional[SessionKVCache] = None) -> int:
+        """Drop idle session caches, then shared prefixes, until nbytes are freed; returns the bytes freed"""
+        freed = 0
+        if self.session_caches is not None:
+            freed += self.session_caches.evict(nbytes, keep=keep)
+        if freed < nbytes and self.prefix_cache is not None:
+            freed += self.prefix_cache.evict(nbytes - freed)
+        with self._condition:
+            self.reclaimed_bytes += freed
+        if freed:
+            print(f"Dropped {freed / 2 ** 20:.0f} MB of cached key/values to admit a request")
+        return freed
+
+    def _bytes_per_token(self, model) -> Optional[int]:
+        key = id(model)
+        if key not in self._kv_per_token:
+            self._kv_per_token[key] = kv_bytes_per_token(model)
+        return self._kv_per_token[key]
+
+    def _memory_budget(self, model) -> Optional[int]:
+        """Bytes the active requests' key/values may reach, read again at every admission"""
+        if self.kv_cache_budget_mb:
+            # The configured budget also covers what the session and prefix caches keep
+            budget = int(self.kv_cache_budget_mb * 2 ** 20) - self._retained_bytes()
+        else:
+            # Free memory already excludes cached key/values, but not those of active requests
+            free = available_kv_memory(model)
+            if free is None:
+                return None
+            if self._kv_budget is None:
+                print(f"Key/value cache budget: {free / 2 ** 20:.0f} MB")
+            budget = free + self._held_bytes()
+        self._kv_budget = budget
+        return budget
+
+    def _preempt_background(self):
+        """Cancel running background requests when interactive ones are waiting for a slot"""
+        active = self._active()
+        if len(active) < self.max_batch_size:
+            return
+        with self._condition:
+            if not any(not r.background for r in self._waiting):
+                return
+            for request in active:
+                if request.background and not request.cancelled:
+                    request.cancel()
+                    self.preempted_background += 1
+
+    def _preempt_for_waiting(self):
+        """Pause a request that used up its time slice when a waiting one is owed its slot or memory"""
+        if not self.time_slice or not self._active():
+            return
+        with self._condition:
+            waiting = [r for r in self._waiting if not r.background and not r.cancelled]
+            if not waiting:
+                return
+            first = min(waiting, key=lambda r: r.finish_tag)
+            # With a free slot, only a request held back by key/value memory needs one paused
+            if len(self._active()) < self.max_batch_size and self._fits_memory(first):
+                return
+
+            now = time.time()
+            expired = [r for r in self._running + self._speculating
+                       if not r.background and not r.cancelled and r.slice_started_at is not None
+                       and now - r.slice_started_at >= self.time_slice and r.model is first.model]
+            if not expired:
+                return
+            # Pause whoever is furthest ahead of its fair share, and only for a request owed more
+            victim = max(expired, key=lambda r: r.finish_tag)
+            if victim.finish_tag <= first.finish_tag:
+                return
+        self._pause(victim)
+
+    def _pause(self, request: GenerationRequest):
+        """Take a request off the model, keeping its key/values, and queue it to resume"""
+        if request in self._speculating:
+            self._speculating.remove(request)
+            cache, request.cache = request.cache, None
+        else:
+            row = self._running.index(request)
+            cache = self._batch.extract(row)
+            self._batch.remove([row])
+            self._running.remove(request)
+            self._release_model()
+
+        # Free device memory for the requests that run meanwhile; layers already on the CPU stay put
+        request.paused_devices = [k.device for k in cache.key_cache] if cache_length(cache) else []
+        if any(device.type == 'cuda' for device in request.paused_devices):
+            cache = move_cache(cache, ['cpu' if d.type == 'cuda' else d for d in request.paused_devices])
+        request.paused_cache = cache
+        request.slice_started_at = None
+
+        with self._condition:
+            self._waiting.append(request)
+            self.preemptions += 1
+        print(f"Paused request {request.request_id} after {len(request.output_ids)} tokens")
+
+    def _resume(self, request: GenerationRequest):
+        """Put a paused request back on the model where it stopped"""
+        cache, request.paused_cache = request.paused_cache, None
+        model = request.model
+        # Layers go back where they were, which differs per layer when the model spans devices
+        if cache_length(cache) and [k.device for k in cache.key_cache] != request.paused_devices:
+            cache = move_cache(cache, request.paused_devices)
+        request.paused_devices = []
+        request.slice_started_at = time.time()
+
+        active = len(self._active())
+        if request.proposer is not None and active < self.max_speculative_requests:
+            request.cache = cache
+            self._speculating.append(request)
+        else:
+            self._batch.add(cache)
+            self._running.append(request)
+            self._model = model
+        with self._condition:
+            self.resumptions += 1
+
+    def _admit_waiting(self):
+        """Prefill waiting requests, or resume paused ones, until the batch is full"""
+        while len(self._active()) < self.max_batch_size:
+            request = self._next_waiting()
+            if request is None:
+                return
+            if request.admission_error is not None:
+                self._complete(request, error=request.admission_error)
+                continue
+            if request.paused_cache is not None:
+                self._resume(request)
+                continue
+            try:
+                self._prefill(request)
+            except Exception as e:
+                print(f"Error prefilling request {request.request_id}: {str(e)}")
+                self._complete(request, error=e)
+
+    def _prefill(self, request: GenerationRequest):
+        """Look up cached key/values for the prompt and queue the rest for prefilling"""
+        model = request.model
+        request.started_at = request.slice_started_at = time.time()
+
+        # Start from the session's previous turn when its tokens still prefix this prompt
+        cache, reused = DynamicCache(), 0
+        if request.session_cache is not None:
+            cache, reused = request.session_cache.take(request.input_ids)
+
+        # Prefixes shared with other sessions may cover even more of the prompt
+        if self.prefix_cache is not None:
+            shared_cache, shared = self.prefix_cache.match(model, request.input_ids, min_length=reused)
+            if shared_cache is not None:
+                cache, reused = shared_cache, shared
+        request.reused_tokens = reused
+        request.cache = cache
+        request.position = reused
+
+        with self._condition:
+            self.reused_tokens += reused
+        self._prefilling.append(request)
+        self._model = model
+
+    def _prefill_step(self):
+        """Run one chunk of the next prompt in turn; sample its first token when done"""
+        request = self._prefilling[0]
+        model = request.model
+        prompt_len = len(request.input_ids)
+        start = request.position
+        end = min(start + self.prefill_chunk_tokens, prompt_len) if self.prefill_chunk_tokens else prompt_len
+
+        try:
+            outputs = self._forward_chunk(model, request, start, end)
+        except Exception as e:
+            # Only this prompt is affected; the running batch carries on
+            print(f"Error prefilling request {request.request_id}: {str(e)}")
+            self._prefilling.pop(0)
+            request.cache = None
+            self._complete(request, error=e)
+            self._release_model()
+            return
+        request.cache = outputs.past_key_values
+        request.position = end
+        with self._condition:
+            self.prefilled_tokens += end - start
+            self.prefill_chunks += 1
+        if end < prompt_len:
+            # Back of the line, so prompts being prefilled share the steps round-robin
+            self._prefilling.append(self._prefilling.pop(0))
+            request.progress()
+            return
+
+        self._prefilling.pop(0)
+        cache, request.cache = request.cache, None
+        if self.prefix_cache is not None:
+            self.prefix_cache.insert(model, request.input_ids, cache)
+
+        token = sample_token(outputs.logits[0, -1, :], request.params)
+        if self._accept_token(request, token):
+            self._store_session_cache(request, cache)
+            self._complete(request)
+            self._release_model()
+            return
+
+        if request.proposer is not None and len(self._running) + len(self._speculating) < self.max_speculative_requests:
+            # Speculative requests keep their own cache and are verified one at a time
+            request.cache = cache
+            self._speculating.append(request)
+            self._release_model()
+            return
+
+        # Join the running batch from the next decode step on
+        self._batch.add(cache)
+        self._running.append(request)
+
+    def _forward_chunk(self, model, request: GenerationRequest, start: int, end: int):
+        """Feed prompt positions start..end, computing logits for the last position only"""
+        device = model.device
+        inputs = dict(
+            input_ids=torch.tensor([request.input_ids[start:end]], device=device),
+            attention_mask=torch.ones((1, end), dtype=torch.long, device=device),
+            position_ids=torch.arange(start, end, device=device).unsqueeze(0),
+            past_key_values=request.cache,
+            use_cache=True
+        )
+        if self._keep_last_logits:
+            try:
+                return model(**inputs, logits_to_keep=1)
+            except TypeError:
+                # Older model code; logits for the whole chunk are still bounded by its size
+                self._keep_last_logits = False
+        return model(**inputs)
+
+    def _decode_step(self):
+        """Advance every running request by one token in a single forward pass"""
+        running = self._running
+        device = self._model.device
+
+        input_ids = torch.tensor([[r.last_token] for r in running], device=device)
+        position_ids = torch.tensor([[r.position] for r in running], device=device)
+        attention_mask = self._batch.extend_mask()
+
+        outputs = self._model(
+            input_ids=input_ids,
+            attention_mask=attention_mask,
+            position_ids=position_ids,
+            past_key_values=self._batch.cache,
+            use_cache=True
+        )
+        self._batch.cache = outputs.past_key_values
+        logits = outputs.logits[:, -1, :]
+
+        finished_rows = []
+        for row, request in enumerate(running):
+            request.position += 1
+            token = sample_token(logits[row], request.params)
+            if self._accept_token(request, token):
+                finished_rows.append(row)
+
+        self.decode_steps += 1
+        self.decoded_rows += len(running)
+
+        if finished_rows:
+            self._retire_rows(finished_rows)
+
+    def _retire_rows(self, rows: List[int]):
+        """Take finished or cancelled rows out of the running batch"""
+        running = self._running
+        for row in rows:
+            if running[row].session_cache is not None:
+                self._store_session_cache(running[row], self._batch.extract(row))
+        self._batch.remove(rows)
+        self._running = [r for i, r in enumerate(running) if i not in rows]
+        for row in rows:
+            self._complete(running[row])
+        self._release_model()
+
+    def _reap_cancelled(self):
+        """Drop cancelled requests so their rows stop costing compute from this step on"""
+        with self._condition:
+            waiting = [r for r in self._waiting if r.cancelled]
+            for request in waiting:
+                self._waiting.remove(request)
+        for request in waiting:
+            request.finish_reason = 'cancelled'
+            request.paused_cache = None
+            self._complete(request)
+
+        for request in [r for r in self._prefilling if r.cancelled]:
+            self._prefilling.remove(request)
+            request.finish_reason = 'cancelled'
+            request.cache = None
+            self._complete(request)
+        self._release_model()
+
+        rows = [row for row, request in enumerate(self._running) if request.cancelled]
+        if rows:
+            for row in rows:
+                self._running[row].finish_reason = 'cancelled'
+            self._retire_rows(rows)
+
+        for request in [r for r in self._speculating if r.cancelled]:
+            self._speculating.remove(request)
+            request.finish_reason = 'cancelled'
+            self._store_session_cache(request, request.cache)
+            request.cache = None
+            self._complete(request)
+
+    def _speculative_step(self, request: GenerationRequest):
+        """Verify the proposer's draft tokens in one target forward pass"""
+        model = request.model
+        device = model.device
+
+        proposals, draft_probs = request.proposer.propose(request.input_ids + request.output_ids, request.params)
+        # Never commit more tokens than the request may still generate
+        remaining = request.params.max_new_tokens - len(request.output_ids)
+        proposals = proposals[:max(remaining - 1, 0)]
+        if draft_probs is not None:
+            draft_probs = draft_probs[:len(proposals)]
+
+        feed = [request.last_token] + proposals
+        start = request.position
+        outputs = model(
+            input_ids=torch.tensor([feed], device=device),
+            attention_mask=torch.ones((1, start + len(feed)), dtype=torch.long, device=device),
+            position_ids=torch.arange(start, start + len(feed), device=device).unsqueeze(0),
+            past_key_values=request.cache,
+            use_cache=True
+        )
+        request.cache = outputs.past_key_values
+
+        tokens, accepted = verify_proposal(outputs.logits[0], proposals, draft_probs, request.params)
+
+        # Keep key/values for the fed token and the accepted proposals only
+        request.position = start + 1 + accepted
+        request.cache.crop(request.position)
+
+        with self._condition:
+            counts = self._speculation.setdefault(request.proposer.name,
+                                                  {'steps': 0, 'proposed': 0, 'accepted': 0})
+            counts['steps'] += 1
+            counts['proposed'] += len(proposals)
+            counts['accepted'] += accepted
+
+        finished = False
+        for token in tokens:
+            if self._accept_token(request, token):
+                finished = True
+                break
+        request.proposer.accepted(request.input_ids + request.output_ids)
+
+        if finished:
+            self._speculating.remove(request)
+            self._store_session_cache(request, request.cache)
+            request.cache = None
+            self._complete(request)
+
+    def _accept_token(self, request: GenerationRequest, token: int) -> bool:
+        """Record a sampled token, stream its text and report whether the request is done"""
+        request.output_ids.append(token)
+        request.last_token = token
+        if request.first_token_at is None:
+            request.first_token_at = time.time()
+            with self._condition:
+                self.first_token_latency_total += request.first_token_at - request.submitted_at
+                self.first_token_count += 1
+                if not request.background:
+                    self._first_token_latencies.append(request.first_token_at - request.submitted_at)
+
+        with self._condition:
+            self.generated_tokens += 1
+            self._token_log.append((time.time(), 1))
+
+        request.emit(request.detokenizer.push(token))
+
+        if token in request.eos_token_ids:
+            request.finish_reason = 'stop'
+        elif len(request.output_ids) >= request.params.max_new_tokens:
+            request.finish_reason = 'length'
+        return request.finish_reason is not None
+
+    @staticmethod
+    def _percentile(values, fraction: float) -> float:
+        if not values:
+            return 0.0
+        ordered = sorted(values)
+        return round(ordered[min(int(len(ordered) * fraction), len(ordered) - 1)], 3)
+
+    @staticmethod
+    def _store_session_cache(request: GenerationRequest, cache: DynamicCache):
+        """Save a finished request's key/values for the session's next turn"""
+        if request.session_cache is None:
+            return
+        # The last sampled token was never fed back, so the cache stops one short of it
+        token_ids = request.input_ids + request.output_ids[:-1]
+        if cache_length(cache) > len(token_ids):
+            cache.crop(len(token_ids))
+        request.session_cache.store(token_ids, cache)
+
+    def _complete(self, request: GenerationRequest, error: Optional[Exception] = None):
+        with self._condition:
+            if error is not None:
+                self.failed_requests += 1
+            elif request.finish_reason == 'cancelled':
+                self.cancelled_requests += 1
+            else:
+                self.completed_requests += 1
+        if error is None:
+            request.finish(request.finish_reason or 'stop')
+        else:
+            request.fail(error)
+
+    def _fail_running(self, error: Exception):
+        """Abort the running batch after a failed forward pass"""
+        running, self._running = self._prefilling + self._running + self._speculating, []
+        self._speculating = []
+        self._prefilling = []
+        for request in running:
+            request.cache = None
+        self._batch.clear()
+        self._model = None
+        for request in running:
+            self._complete(request, error=error)
@@ -0,0 +1,153 @@
+# infrastructure/inference/inference_executor.py
+import itertools
+import math
+import threading
+import time
+from collections import deque
+from typing import Callable, Deque, List, Optional
+
+
+class QueueFullError(Exception):
+    """Raised when the executor cannot take more work; retry_after is a suggested wait in seconds"""
+
+    def __init__(self, retry_after: int):
+        super().__init__(f"Server busy, retry in {retry_after} s")
+        self.retry_after = retry_after
+
+
+class InferenceJob:
+    """A unit of work waiting for or running on an executor worker"""
+    _ids = itertools.count(1)
+
+    def __init__(self, fn: Callable[[], None], key: Optional[str] = None,
+                 on_queued: Optional[Callable[[int, float], None]] = None):
+        self.job_id = next(self._ids)
+        self.fn = fn
+        self.key = key  # Usually the session id, to find a session's queued work
+        self.on_queued = on_queued  # Called with (position, eta seconds) while the job waits
+        self.submitted_at = time.time()
+        self.started_at: Optional[float] = None
+
+
+class InferenceExecutor:
+    """
+    Fixed pool of worker threads fed from a bounded FIFO queue.
+    Work beyond the queue is rejected with QueueFullError instead of piling up
+    threads, and waiting jobs are told their position and an estimated start time
+    whenever the queue moves.
+    """
+
+    def __init__(self, max_workers: int = 8, max_queue: int = 32, initial_job_seconds: float = 30.0):
+        self.max_workers = max(max_workers or 1, 1)
+        self.max_queue = max(max_queue or 0, 0)
+        self._queue: Deque[InferenceJob] = deque()
+        self._condition = threading.Condition()
+        self._workers: List[threading.Thread] = []
+        self._running = 0
+        self._avg_seconds = initial_job_seconds  # Moving average of job durations, for ETAs
+
+        # Metrics
+        self.submitted = 0
+        self.completed = 0
+        self.rejected = 0
+        self.discarded = 0
+        self.wait_time = 0.0
+
+    def submit(self, fn: Callable[[], None], key: Optional[str] = None,
+               on_queued: Optional[Callable[[int, float], None]] = None) -> int:
+        """
+        Queue fn to run on a worker and return its position in the queue (0 if a worker is free).
+        Raises QueueFullError when the queue is full.
+        """
+        with self._condition:
+            self._ensure_workers()
+            # Jobs ahead of this one that no free worker picks up right away
+            position = max(len(self._queue) + 1 - (self.max_workers - self._running), 0)
+            if position > self.max_queue:
+                self.rejected += 1
+                raise QueueFullError(self._retry_after())
+
+            self._queue.append(InferenceJob(fn, key, on_queued))
+            self.submitted += 1
+            self._condition.notify()
+
+        if position > 0 and on_queued is not None:
+            on_queued(position, self._eta(position))
+        return position
+
+    def discard(self, key: str) -> int:
+        """Drop the queued, not yet started jobs of key and return how many"""
+        with self._condition:
+            jobs = [job for job in self._queue if job.key == key]
+            for job in jobs:
+                self._queue.remove(job)
+            self.discarded += len(jobs)
+        if jobs:
+            self._notify_positions()
+        return len(jobs)
+
+    def stats(self) -> dict:
+        with self._condition:
+            started = self.completed + self._running
+            return {
+                'max_workers': self.max_workers,
+                'max_queue': self.max_queue,
+                'running': self._running,
+                'queued': len(self._queue),
+                'submitted': self.submitted,
+                'completed': self.completed,
+                'rejected': self.rejected,
+                'discarded': self.discarded,
+                'avg_wait_time': round(self.wait_time / started, 3) if started else 0.0,
+                'avg_job_time': round(self._avg_seconds, 3)
+            }
+
+    def _ensure_workers(self):
+        """Start the workers on first use and replace any that died"""
+        self._workers = [worker for worker in self._workers if worker.is_alive()]
+        while len(self._workers) < self.max_workers:
+            worker = threading.Thread(target=self._work, name=f"inference-worker-{len(self._workers)}", daemon=True)
+            worker.start()
+            self._workers.append(worker)
+
+    def _work(self):
+        while True:
+            with self._condition:
+                while not self._queue:
+                    self._condition.wait()
+                job = self._queue.popleft()
+                job.started_at = time.time()
+                self._running += 1
+                self.wait_time += job.started_at - job.submitted_at
+            self._notify_positions()
+
+            try:
+                job.fn()
+            except Exception as e:
+                print(f"Error in inference job {job.job_id}: {str(e)}")
+            finally:
+                with self._condition:
+                    self._running -= 1
+                    self.completed += 1
+                    # Weight recent jobs more; the mix of prompts changes over time
+                    self._avg_seconds = 0.8 * self._avg_seconds + 0.2 * (time.time() - job.started_at)
+
+    def _notify_positions(self):
+        """Tell every waiting job where it stands now"""
+        with self._condition:
+            free = self.max_workers - self._running
+            waiting = [(job, position - free) for position, job in enumerate(self._queue, 1) if position > free]
+        for job, position in waiting:
+            if job.on_queued is not None:
+                try:
+                    job.on_queued(position, self._eta(position))
+                except Exception as e:
+                    print(f"Error reporting queue position: {str(e)}")
+
+    def _eta(self, position: int) -> float:
+        """Seconds until the job at position starts, assuming average job durations"""
+        return round(math.ceil(position / self.max_workers) * self._avg_seconds, 1)
+
+    def _retry_after(self) -> int:
+        """Seconds until the queue has room again"""
+        return max(int(math.ceil(self._avg_seconds / self.max_workers)), 1)
@@ -0,0 +1,292 @@
+# infrastructure/inference/kv_cache.py
+import os
+import threading
+import weakref
+from collections import OrderedDict
+from typing import List, Optional, Tuple
+
+import torch
+import torch.nn.functional as F
+from transformers import DynamicCache
+
+
+def cache_from_layers(keys: List[torch.Tensor], values: List[torch.Tensor]) -> DynamicCache:
+    """Wrap per-layer key/value tensors in a DynamicCache"""
+    cache = DynamicCache()
+    cache.key_cache = list(keys)
+    cache.value_cache = list(values)
+    return cache
+
+
+def cache_length(cache: Optional[DynamicCache]) -> int:
+    """Number of positions held by the cache"""
+    if cache is None or not cache.key_cache:
+        return 0
+    return cache.key_cache[0].shape[-2]
+
+
+def cache_nbytes(cache: Optional[DynamicCache]) -> int:
+    """Memory held by the cache tensors in bytes"""
+    if cache is None:
+        return 0
+    return sum(t.numel() * t.element_size() for t in cache.key_cache + cache.value_cache)
+
+
+def move_cache(cache: DynamicCache, device) -> DynamicCache:
+    """Copy of the cache with every tensor on device, or each layer on its own device when given a list"""
+    devices = device if isinstance(device, (list, tuple)) else [device] * len(cache.key_cache)
+    return cache_from_layers([k.to(d) for k, d in zip(cache.key_cache, devices)],
+                             [v.to(d) for v, d in zip(cache.value_cache, devices)])
+
+
+def kv_bytes_per_token(model) -> Optional[int]:
+    """Key/value bytes one token adds to the cache across all layers, read from the model config"""
+    config = getattr(model, 'config', None)
+    layers = getattr(config, 'num_hidden_layers', None)
+    heads = getattr(config, 'num_attention_heads', None)
+    if not layers or not heads:
+        return None
+    kv_heads = getattr(config, 'num_key_value_heads', None) or heads
+    head_dim = getattr(config, 'head_dim', None) or config.hidden_size // heads
+    # Caches are kept in the model's compute dtype (float32 for int8 dynamic quantization)
+    dtype = getattr(model, 'dtype', None) or torch.float32
+    return 2 * layers * kv_heads * head_dim * torch.empty(0, dtype=dtype).element_size()
+
+
+def available_kv_memory(model, fraction_gpu: float = 0.8, fraction_cpu: float = 0.5) -> Optional[int]:
+    """Share of the memory free on the model's device that key/value caches may use"""
+    device = getattr(model, 'device', None)
+    if device is not None and device.type == 'cuda':
+        free, _ = torch.cuda.mem_get_info(device)
+        # Blocks PyTorch keeps reserved after tensors are freed are free to us as well
+        free += torch.cuda.memory_reserved(device) - torch.cuda.memory_allocated(device)
+        return int(free * fraction_gpu)
+    try:
+        return int(os.sysconf('SC_AVPHYS_PAGES') * os.sysconf('SC_PAGE_SIZE') * fraction_cpu)
+    except (AttributeError, ValueError, OSError):
+        return None
+
+
+def _pad_left(tensor: torch.Tensor, pad: int) -> torch.Tensor:
+    # Tensors are [batch, heads, seq, head_dim]; pad the sequence dimension
+    return F.pad(tensor, (0, 0, pad, 0)) if pad > 0 else tensor
+
+
+class BatchedKVCache:
+    """
+    Left-padded KV cache shared by every sequence in the running decode batch.
+    Rows join and leave between decode steps; padding positions are masked out
+    through the attention mask.
+    """
+
+    def __init__(self):
+        self.cache: Optional[DynamicCache] = None
+        self.attention_mask: Optional[torch.Tensor] = None
+
+    @property
+    def batch_size(self) -> int:
+        return 0 if self.attention_mask is None else self.attention_mask.shape[0]
+
+    def add(self, row_cache: DynamicCache):
+        """Append a single-sequence cache as the last row of the batch"""
+        row_len = cache_length(row_cache)
+        device = row_cache.key_cache[0].device
+        row_mask = torch.ones((1, row_len), dtype=torch.long, device=device)
+
+        if self.cache is None:
+            self.cache = row_cache
+            self.attention_mask = row_mask
+            return
+
+        batch_len = self.attention_mask.shape[1]
+        target_len = max(batch_len, row_len)
+        keys, values = [], []
+        for layer in range(len(self.cache.key_cache)):
+            keys.append(torch.cat([
+                _pad_left(self.cache.key_cache[layer], target_len - batch_len),
+                _pad_left(row_cache.key_cache[layer], target_len - row_len)
+            ], dim=0))
+            values.append(torch.cat([
+                _pad_left(self.cache.value_cache[layer], target_len - batch_len),
+                _pad_left(row_cache.value_cache[layer], target_len - row_len)
+            ], dim=0))
+
+        self.cache = cache_from_layers(keys, values)
+        self.attention_mask = torch.cat([
+            F.pad(self.attention_mask, (target_len - batch_len, 0)),
+            F.pad(row_mask, (target_len - row_len, 0))
+        ], dim=0)
+
+    def remove(self, rows: List[int]):
+        """Drop the given rows and trim padding no remaining row needs"""
+        keep = [i for i in range(self.batch_size) if i not in set(rows)]
+        if not keep:
+            self.clear()
+            return
+
+        mask = self.attention_mask[keep]
+        # Every remaining row is left-padded, so the shortest padding can go
+        trim = int((mask.sum(dim=0) == 0).long().cumprod(dim=0).sum().item())
+        index = torch.tensor(keep, device=mask.device)
+
+        keys = [k.index_select(0, index.to(k.device))[:, :, trim:, :] for k in self.cache.key_cache]
+        values = [v.index_select(0, index.to(v.device))[:, :, trim:, :] for v in self.cache.value_cache]
+        self.cache = cache_from_layers(keys, values)
+        self.attention_mask = mask[:, trim:]
+
+    def extract(self, row: int) -> DynamicCache:
+        """Copy one row out of the batch without its padding"""
+        length = int(self.attention_mask[row].sum().item())
+        keys = [k[row:row + 1, :, -length:, :].clone() for k in self.cache.key_cache]
+        values = [v[row:row + 1, :, -length:, :].clone() for v in self.cache.value_cache]
+        return cache_from_layers(keys, values)
+
+    def extend_mask(self) -> torch.Tensor:
+        """Grow the attention mask by one position for the next decode step"""
+        ones = torch.ones((self.batch_size, 1), dtype=torch.long, device=self.attention_mask.device)
+        self.attention_mask = torch.cat([self.attention_mask, ones], dim=1)
+        return self.attention_mask
+
+    def nbytes(self) -> int:
+        return cache_nbytes(self.cache)
+
+    def clear(self):
+        self.cache = None
+        self.attention_mask = None
+
+
+class SessionKVCache:
+    """
+    Past key/values of a session's previous turn together with the token ids they cover.
+    The next turn reuses the longest matching prefix and only prefills the rest.
+    Caches created by a SessionKVCachePool count towards its memory bound.
+    """
+
+    def __init__(self, pool: Optional["SessionKVCachePool"] = None):
+        self.token_ids: List[int] = []
+        self.cache: Optional[DynamicCache] = None
+        self.lock = threading.Lock()
+        self.pool = pool
+
+    def take(self, input_ids: List[int]) -> Tuple[DynamicCache, int]:
+        """
+        Hand over the cached key/values cropped to the prefix shared with input_ids.
+        Returns the cache and the number of prompt tokens it already covers.
+        """
+        with self.lock:
+            cache, token_ids = self.cache, self.token_ids
+            self.cache, self.token_ids = None, []
+
+        if cache is None:
+            return DynamicCache(), 0
+
+        matched = 0
+        for cached_id, input_id in zip(token_ids, input_ids):
+            if cached_id != input_id:
+                break
+            matched += 1
+
+        # The last prompt token is always run through the model to get its logits
+        matched = min(matched, len(input_ids) - 1)
+        if matched <= 0:
+            return DynamicCache(), 0
+
+        cache.crop(matched)
+        return cache, matched
+
+    def store(self, token_ids: List[int], cache: DynamicCache):
+        """Keep the key/values of a finished turn for the next one"""
+        with self.lock:
+            self.token_ids = list(token_ids)
+            self.cache = cache
+        if self.pool is not None:
+            self.pool.stored(self)
+
+    def nbytes(self) -> int:
+        with self.lock:
+            return cache_nbytes(self.cache)
+
+    def clear(self):
+        with self.lock:
+            self.token_ids = []
+            self.cache = None
+
+
+class SessionKVCachePool:
+    """
+    Creates the sessions' caches and bounds the memory they retain together.
+    When a stored turn takes the total past max_memory_mb, the caches of the least
+    recently served other sessions are dropped; their next turn prefills in full.
+    """
+
+    def __init__(self, max_memory_mb: Optional[int] = 4096):
+        self.max_bytes = int((max_memory_mb or 0) * 2 ** 20)  # 0 leaves the total unbounded
+        self._caches: "OrderedDict[int, weakref.ref]" = OrderedDict()  # id -> cache, least recently stored first
+        self._lock = threading.Lock()
+
+        # Metrics
+        self.evictions = 0
+        self.evicted_bytes = 0
+
+    def create(self) -> SessionKVCache:
+        cache = SessionKVCache(self)
+        with self._lock:
+            self._caches[id(cache)] = weakref.ref(cache)
+        return cache
+
+    def release(self, cache: SessionKVCache):
+        """Drop a closed session's cache"""
+        cache.clear()
+        with self._lock:
+            self._caches.pop(id(cache), None)
+
+    def stored(self, cache: SessionKVCache):
+        """Mark cache as most recently used and enforce the bound on the others"""
+        with self._lock:
+            if id(cache) in self._caches:
+                self._caches.move_to_end(id(cache))
+        if self.max_bytes:
+            self.evict(self.nbytes() - self.max_bytes, keep=cache)
+
+    def nbytes(self) -> int:
+        return sum(cache.nbytes() for cache in self._live())
+
+    def evict(self, nbytes: int, keep: Optional[SessionKVCache] = None) -> int:
+        """Drop least recently used caches other than keep until nbytes are freed; returns the bytes freed"""
+        freed = 0
+        for cache in self._live():
+            if freed >= nbytes:
+                break
+            if cache is keep:
+                continue
+            size = cache.nbytes()
+            if size:
+                cache.clear()
+                freed += size
+                with self._lock:
+                    self.evictions += 1
+                    self.evicted_bytes += size
+        return freed
+
+    def stats(self) -> dict:
+        caches = self._live()
+        return {
+            'sessions': len(caches),
+            'cached_sessions': sum(1 for cache in caches if cache.cache is not None),
+            'bytes_used': sum(cache.nbytes() for cache in caches),
+            'max_bytes': self.max_bytes,
+            'evictions': self.evictions,
+            'evicted_bytes': self.evicted_bytes
+        }
+
+    def _live(self) -> List[SessionKVCache]:
+        """Caches in least recently stored order, forgetting sessions that were dropped"""
+        with self._lock:
+            live = []
+            for key, ref in list(self._caches.items()):
+                cache = ref()
+                if cache is None:
+                    del self._caches[key]
+                else:
+                    live.append(cache)
+            return live
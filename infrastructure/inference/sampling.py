@@ -0,0 +1,107 @@
+# infrastructure/inference/sampling.py
+from dataclasses import dataclass
+from typing import List, Optional
+
+import torch
+
+
+@dataclass
+class SamplingParams:
+    """Sampling settings for a single generation request"""
+    max_new_tokens: int = 5000
+    do_sample: bool = True
+    temperature: float = 1.0
+    top_k: int = 0
+    top_p: float = 1.0
+
+    @classmethod
+    def from_model(cls, model, max_new_tokens: int = 5000, do_sample: bool = True) -> "SamplingParams":
+        """Build params from the model's generation config, as model.generate() would"""
+        generation_config = getattr(model, 'generation_config', None)
+        return cls(
+            max_new_tokens=max_new_tokens,
+            do_sample=do_sample,
+            temperature=getattr(generation_config, 'temperature', None) or 1.0,
+            top_k=getattr(generation_config, 'top_k', None) or 0,
+            top_p=getattr(generation_config, 'top_p', None) or 1.0
+        )
+
+
+def get_eos_token_ids(model, tokenizer) -> List[int]:
+    """Collect the token ids that end a generation"""
+    eos = getattr(getattr(model, 'generation_config', None), 'eos_token_id', None)
+    if eos is None:
+        eos = tokenizer.eos_token_id
+    if eos is None:
+        return []
+    return list(eos) if isinstance(eos, (list, tuple)) else [eos]
+
+
+def logits_to_probs(logits: torch.Tensor, params: SamplingParams) -> torch.Tensor:
+    """Apply temperature, top-k and top-p warping and return a probability distribution"""
+    logits = logits.float()
+
+    if not params.do_sample:
+        # Greedy decoding is a one-hot distribution on the argmax
+        probs = torch.zeros_like(logits)
+        probs.scatter_(-1, logits.argmax(dim=-1, keepdim=True), 1.0)
+        return probs
+
+    if params.temperature and params.temperature != 1.0:
+        logits = logits / params.temperature
+
+    if params.top_k and params.top_k > 0:
+        top_k = min(params.top_k, logits.size(-1))
+        threshold = torch.topk(logits, top_k, dim=-1).values[..., -1, None]
+        logits = logits.masked_fill(logits < threshold, float('-inf'))
+
+    if params.top_p is not None and params.top_p < 1.0:
+        sorted_logits, sorted_indices = torch.sort(logits, descending=True, dim=-1)
+        sorted_probs = torch.softmax(sorted_logits, dim=-1)
+        # Drop tokens once the cumulative mass ranked above them already reaches top_p
+        sorted_remove = (sorted_probs.cumsum(dim=-1) - sorted_probs) >= params.top_p
+        remove = sorted_remove.scatter(-1, sorted_indices, sorted_remove)
+        logits = logits.masked_fill(remove, float('-inf'))
+
+    return torch.softmax(logits, dim=-1)
+
+
+def sample_token(logits: torch.Tensor, params: SamplingParams) -> int:
+    """Pick the next token id from a 1-D logits vector"""
+    if not params.do_sample:
+        return int(logits.argmax(dim=-1).item())
+    probs = logits_to_probs(logits, params)
+    return int(torch.multinomial(probs, num_samples=1).item())
+
+
+class IncrementalDetokenizer:
+    """
+    Turns a growing list of token ids into text deltas.
+    Decodes a small window around the newest tokens so multi-token characters
+    and leading-space handling come out the same as a full decode.
+    """
+
+    def __init__(self, tokenizer, skip_token_ids: Optional[List[int]] = None):
+        self.tokenizer = tokenizer
+        self.skip_token_ids = set(skip_token_ids or [])
+        self.tokens: List[int] = []
+        self.prefix_offset = 0
+        self.read_offset = 0
+
+    def push(self, token_id: int) -> str:
+        """Add a token and return any newly completed text"""
+        if token_id in self.skip_token_ids:
+            return ""
+        self.tokens.append(token_id)
+
+        prefix_text = self.tokenizer.decode(self.tokens[self.prefix_offset:self.read_offset],
+                                            skip_special_tokens=True)
+        new_text = self.tokenizer.decode(self.tokens[self.prefix_offset:], skip_special_tokens=True)
+
+        # Hold back incomplete byte sequences until the next token completes them
+        if len(new_text) > len(prefix_text) and not new_text.endswith("�"):
+            delta = new_text[len(prefix_text):]
+            self.prefix_offset = self.read_offset
+            self.read_offset = len(self.tokens)
+            return delta
+        return ""
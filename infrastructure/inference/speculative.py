@@ -0,0 +1,187 @@
+# infrastructure/inference/speculative.py
+from typing import Dict, List, Optional, Tuple
+
+import torch
+import torch.nn.functional as F
+from transformers import DynamicCache
+
+from infrastructure.inference.sampling import SamplingParams, logits_to_probs
+
+
+class Proposer:
+    """Proposes draft tokens for the target model to verify in one forward pass"""
+    name = "proposer"
+
+    def __init__(self, num_tokens: int = 4):
+        self.num_tokens = num_tokens
+
+    def propose(self, token_ids: List[int], params: SamplingParams) -> Tuple[List[int], Optional[torch.Tensor]]:
+        """
+        Propose up to num_tokens continuations of token_ids.
+        Returns the tokens and the draft distribution each was sampled from
+        ([len(tokens), vocab]), or None when the proposals are deterministic.
+        """
+        raise NotImplementedError
+
+    def accepted(self, token_ids: List[int]):
+        """Called with the committed tokens after each verification step"""
+        pass
+
+
+class DraftModelProposer(Proposer):
+    """
+    Samples proposals from a small draft model that shares the target's tokenizer.
+    The prompt is fed to the draft prefill_chunk_tokens at a time, like the target's,
+    so a long prompt never needs activation memory for all of its tokens at once.
+    """
+    name = "draft_model"
+
+    def __init__(self, draft_model, num_tokens: int = 4, prefill_chunk_tokens: int = 0):
+        super().__init__(num_tokens)
+        self.draft_model = draft_model
+        self.prefill_chunk_tokens = prefill_chunk_tokens or 0  # 0 feeds whole prompts at once
+        self.cache = DynamicCache()
+        self.cached_ids: List[int] = []  # Tokens whose key/values are in the draft cache
+
+    def propose(self, token_ids: List[int], params: SamplingParams) -> Tuple[List[int], Optional[torch.Tensor]]:
+        pending = token_ids[len(self.cached_ids):]
+        proposals: List[int] = []
+        probs: List[torch.Tensor] = []
+
+        # Only the last slice's logits are needed, the earlier ones just fill the cache
+        chunk = self.prefill_chunk_tokens
+        while chunk and len(pending) > chunk:
+            self._feed(pending[:chunk])
+            pending = pending[chunk:]
+
+        for _ in range(self.num_tokens):
+            outputs = self._feed(pending)
+            q = logits_to_probs(outputs.logits[0, -1, :], params)
+            token = int(torch.multinomial(q, num_samples=1).item()) if params.do_sample else int(q.argmax().item())
+            proposals.append(token)
+            probs.append(q)
+            pending = [token]
+
+        return proposals, torch.stack(probs)
+
+    def _feed(self, token_ids: List[int]):
+        """Run token_ids through the draft model after its cached tokens"""
+        device = self.draft_model.device
+        start = len(self.cached_ids)
+        outputs = self.draft_model(
+            input_ids=torch.tensor([token_ids], device=device),
+            attention_mask=torch.ones((1, start + len(token_ids)), dtype=torch.long, device=device),
+            position_ids=torch.arange(start, start + len(token_ids), device=device).unsqueeze(0),
+            past_key_values=self.cache,
+            use_cache=True
+        )
+        self.cache = outputs.past_key_values
+        self.cached_ids.extend(token_ids)
+        return outputs
+
+    def accepted(self, token_ids: List[int]):
+        # Drop draft key/values for proposals the target rejected
+        matched = 0
+        for cached_id, token_id in zip(self.cached_ids, token_ids):
+            if cached_id != token_id:
+                break
+            matched += 1
+        if matched < len(self.cached_ids):
+            self.cache.crop(matched)
+            self.cached_ids = self.cached_ids[:matched]
+
+
+class PromptLookupProposer(Proposer):
+    """
+    Draft-free proposals: looks up the last few tokens of the sequence earlier in the
+    context (usually the file being edited in the prompt) and proposes what followed them.
+    Copy-heavy answers such as refactorings accept long runs of these tokens.
+    """
+    name = "prompt_lookup"
+
+    def __init__(self, num_tokens: int = 10, max_ngram: int = 3, min_ngram: int = 1):
+        super().__init__(num_tokens)
+        self.max_ngram = max_ngram
+        self.min_ngram = min_ngram
+        self._index: Dict[Tuple[int, ...], int] = {}  # n-gram -> position right after its first occurrence
+        self._indexed = 0  # Positions whose ending n-grams are in the index
+
+    def propose(self, token_ids: List[int], params: SamplingParams) -> Tuple[List[int], Optional[torch.Tensor]]:
+        # Index every n-gram except the trailing one we are about to look up
+        self._extend_index(token_ids, len(token_ids) - 1)
+
+        for n in range(self.max_ngram, self.min_ngram - 1, -1):
+            if len(token_ids) < n:
+                continue
+            start = self._index.get(tuple(token_ids[-n:]))
+            if start is not None:
+                continuation = token_ids[start:start + self.num_tokens]
+                if continuation:
+                    return continuation, None
+        return [], None
+
+    def _extend_index(self, token_ids: List[int], end: int):
+        for position in range(self._indexed + 1, end + 1):
+            for n in range(self.min_ngram, self.max_ngram + 1):
+                if position >= n:
+                    # Keep the first occurrence, which is normally in the prompt
+                    self._index.setdefault(tuple(token_ids[position - n:position]), position)
+        self._indexed = max(self._indexed, end)
+
+
+def verify_proposal(target_logits: torch.Tensor, proposals: List[int], draft_probs: Optional[torch.Tensor],
+                    params: SamplingParams) -> Tuple[List[int], int]:
+    """
+    Speculative sampling: accept each proposal with probability min(1, p/q) and on the
+    first rejection resample from the residual max(0, p - q). The emitted tokens follow
+    exactly the distribution plain sampling from the target would produce.
+
+    target_logits holds len(proposals) + 1 rows: one per proposal plus a bonus row.
+    Returns the tokens to commit and how many proposals were accepted.
+    """
+    target_probs = logits_to_probs(target_logits, params)
+    vocab = target_probs.size(-1)
+
+    if draft_probs is None:
+        # Deterministic proposals are a one-hot draft distribution
+        draft_probs = torch.zeros_like(target_probs[:len(proposals)])
+        for i, token in enumerate(proposals):
+            if token < vocab:
+                draft_probs[i, token] = 1.0
+    elif draft_probs.size(-1) != vocab:
+        # Align vocabularies; tokens outside the target vocab have zero target probability
+        draft_probs = draft_probs[:, :vocab] if draft_probs.size(-1) > vocab \
+            else F.pad(draft_probs, (0, vocab - draft_probs.size(-1)))
+    draft_probs = draft_probs.to(target_probs.device, target_probs.dtype)
+
+    committed: List[int] = []
+    for i, token in enumerate(proposals):
+        p = target_probs[i]
+        q = draft_probs[i]
+        p_token = p[token].item() if token < vocab else 0.0
+        q_token = q[token].item() if token < vocab else 0.0
+
+        if params.do_sample:
+            accept = q_token > 0 and torch.rand(1).item() < min(1.0, p_token / q_token)
+        else:
+            accept = token == int(p.argmax().item())
+
+        if accept:
+            committed.append(token)
+            continue
+
+        # Rejected: sample the correction from the part of p the draft under-covers
+        if params.do_sample:
+            residual = torch.clamp(p - q, min=0)
+            residual = residual / residual.sum() if residual.sum() > 0 else p
+            committed.append(int(torch.multinomial(residual, num_samples=1).item()))
+        else:
+            committed.append(int(p.argmax().item()))
+        return committed, i
+
+    # Every proposal was accepted; the bonus row gives one more token for free
+    bonus = target_probs[len(proposals)]
+    bonus_token = int(torch.multinomial(bonus, num_samples=1).item()) if params.do_sample \
+        else int(bonus.argmax().item())
+    committed.append(bonus_token)
+    return committed, len(proposals)
@@ -0,0 +1,87 @@
+# infrastructure/inference/text_embedder.py
+import hashlib
+import threading
+from collections import OrderedDict
+from typing import List, Optional
+
+import torch
+from transformers import AutoModel, AutoTokenizer
+
+
+class TextEmbedder:
+    """
+    Sentence embeddings from a small encoder run on the CPU, so retrieval never
+    competes with the chat model for GPU memory. The model is loaded on first use and
+    vectors are cached by text hash, so unchanged chunks are only embedded once.
+    A model that fails to load is not tried again; see available.
+    """
+
+    def __init__(self, model_name: str = "sentence-transformers/all-MiniLM-L6-v2", max_cached: int = 20000,
+                 batch_size: int = 32, max_length: int = 256):
+        self.model_name = model_name
+        self.max_cached = max_cached
+        self.batch_size = batch_size
+        self.max_length = max_length
+        self._model = None
+        self._tokenizer = None
+        self._load_error: Optional[Exception] = None
+        self._vectors: "OrderedDict[str, torch.Tensor]" = OrderedDict()  # sha256 -> normalized vector
+        self._load_lock = threading.Lock()
+        self._lock = threading.Lock()
+
+    @property
+    def available(self) -> bool:
+        """False once the model failed to load"""
+        return self._load_error is None
+
+    def embed(self, texts: List[str]) -> torch.Tensor:
+        """Unit-length embeddings of texts, one row per text"""
+        keys = [hashlib.sha256(text.encode('utf-8')).hexdigest() for text in texts]
+        vectors = {}
+        with self._lock:
+            for key in keys:
+                if key in self._vectors:
+                    self._vectors.move_to_end(key)
+                    vectors[key] = self._vectors[key]
+
+        missing = list({key: text for key, text in zip(keys, texts) if key not in vectors}.items())
+        for start in range(0, len(missing), self.batch_size):
+            batch = missing[start:start + self.batch_size]
+            for (key, _), vector in zip(batch, self._encode([text for _, text in batch])):
+                vectors[key] = vector
+
+        with self._lock:
+            for key, _ in missing:
+                self._vectors[key] = vectors[key]
+            while len(self._vectors) > self.max_cached:
+                self._vectors.popitem(last=False)
+
+        return torch.stack([vectors[key] for key in keys])
+
+    def _encode(self, texts: List[str]) -> List[torch.Tensor]:
+        model, tokenizer = self._load()
+        inputs = tokenizer(texts, padding=True, truncation=True, max_length=self.max_length, return_tensors="pt")
+        with torch.inference_mode():
+            hidden = model(**inputs).last_hidden_state
+
+        # Mean over the real tokens, then normalize so a dot product is the cosine similarity
+        mask = inputs["attention_mask"].unsqueeze(-1).to(hidden.dtype)
+        pooled = (hidden * mask).sum(dim=1) / mask.sum(dim=1).clamp(min=1e-9)
+        return list(torch.nn.functional.normalize(pooled, dim=-1))
+
+    def _load(self):
+        with self._load_lock:
+            if self._load_error is not None:
+                raise RuntimeError(f"Embedding model {self.model_name} is unavailable: {self._load_error}")
+            if self._model is None:
+                print(f"Loading embedding model: {self.model_name}")
+                try:
+                    self._tokenizer = AutoTokenizer.from_pretrained(self.model_name)
+                    self._model = AutoModel.from_pretrained(self.model_name).eval()
+                except Exception as e:
+                    # Loading again on every search would only fail again, slowly
+                    print(f"Error loading embedding model {self.model_name}: {str(e)}")
+                    self._load_error = e
+                    self._tokenizer = None
+                    raise
+            return self._model, self._tokenizer
@@ -1,18 +1,22 @@
 # infrastructure/session/session_manager.py
-from typing import Dict, Any
+from typing import Dict, Any, Optional
 import uuid
 import threading
 import time
 
+from infrastructure.inference.kv_cache import SessionKVCachePool
+
 
 class SessionManager:
     """Manages user sessions and their associated conversation use cases"""
 
-    def __init__(self, session_timeout=3600):  # Default timeout: 1 hour
+    def __init__(self, session_timeout=3600,  # Default timeout: 1 hour
+                 kv_caches: Optional[SessionKVCachePool] = None):
         self.sessions: Dict[str, Dict[str, Any]] = {}
         self.session_timestamps: Dict[str, float] = {}  # Track last activity time
         self.session_timeout = session_timeout
         self.lock = threading.Lock()  # Thread safety
+        self.kv_caches = kv_caches or SessionKVCachePool()  # Bounds the key/values all sessions keep
 
         # Start a cleanup thread
         self._start_cleanup_thread()
@@ -25,6 +29,8 @@ class SessionManager:
                 'conversation_uc': None,
                 'model': None,
                 'tokenizer': None,
+                'kv_cache': self.kv_caches.create(),  # Past key/values reused across turns
+                'generation_lock': threading.Lock(),  # One response at a time per session
                 'created_at': time.time()
             }
             self.session_timestamps[session_id] = time.time()
@@ -51,7 +57,7 @@ class SessionManager:
         """Delete a session"""
         with self.lock:
             if session_id in self.sessions:
-                del self.sessions[session_id]
+                self.kv_caches.release(self.sessions.pop(session_id)['kv_cache'])
                 if session_id in self.session_timestamps:
                     del self.session_timestamps[session_id]
 
@@ -76,7 +82,7 @@ class SessionManager:
             for session_id in expired_sessions:
                 print(f"Removing expired session: {session_id}")
                 if session_id in self.sessions:
-                    del self.sessions[session_id]
+                    self.kv_caches.release(self.sessions.pop(session_id)['kv_cache'])
                 if session_id in self.session_timestamps:
                     del self.session_timestamps[session_id]
 
@@ -0,0 +1,61 @@
+# tests/test_incremental_adapter.py
+import unittest
+from types import SimpleNamespace
+
+from core.domain.models import ChatMessage
+from infrastructure.adapters.prompt_builders.incremental_adapter import IncrementalPromptAdapter
+
+BOS_ID = 1
+
+
+class BosTemplateTokenizer:
+    """Tokenizer whose chat template writes out the BOS token, like Llama and DeepSeek ones"""
+    chat_template = "llama-style"
+    bos_token = "<s>"
+
+    def __call__(self, text, add_special_tokens=True, **kwargs):
+        ids = [BOS_ID] if add_special_tokens else []
+        while text:
+            if text.startswith(self.bos_token):
+                ids.append(BOS_ID)
+                text = text[len(self.bos_token):]
+            else:
+                ids.append(ord(text[0]) + 10)
+                text = text[1:]
+        return SimpleNamespace(input_ids=ids)
+
+    def apply_chat_template(self, messages, tokenize=False, add_generation_prompt=False):
+        text = self.bos_token
+        for message in messages:
+            if message["role"] == "user":
+                text += f"[INST] {message['content']} [/INST]"
+            else:
+                text += f" {message['content']}</s>"
+        return text + (" " if add_generation_prompt else "")
+
+
+class IncrementalPromptAdapterTest(unittest.TestCase):
+    def test_prompt_starts_with_exactly_one_bos(self):
+        tokenizer = BosTemplateTokenizer()
+        history = [ChatMessage("user", "hello"), ChatMessage("assistant", "hi"), ChatMessage("user", "again")]
+
+        text, ids = IncrementalPromptAdapter().build_prompt_ids(history, tokenizer)
+
+        self.assertTrue(text.startswith("<s>[INST] hello"))
+        self.assertEqual(ids.count(BOS_ID), 1)
+        self.assertEqual(ids[0], BOS_ID)
+        self.assertEqual(ids, tokenizer(text, add_special_tokens=False).input_ids)
+
+    def test_bos_added_when_template_omits_it(self):
+        tokenizer = BosTemplateTokenizer()
+        tokenizer.chat_template = None
+
+        text, ids = IncrementalPromptAdapter().build_prompt_ids([ChatMessage("user", "hello")], tokenizer)
+
+        self.assertEqual(text, "User: hello\nAssistant: ")
+        self.assertEqual(ids.count(BOS_ID), 1)
+        self.assertEqual(ids[0], BOS_ID)
+
+
+if __name__ == '__main__':
+    unittest.main()
@@ -0,0 +1,115 @@
+# tests/test_outline_renderer.py
+import unittest
+
+from application.services.outline_renderer import render_outline
+
+# Shape of the services and components under frontend/static/js
+MODULE_JS = """// frontend/static/js/services/session.service.js
+
+/**
+ * Service for handling sessions
+ */
+const SessionService = (function() {
+    // Private state
+    let sessionId = null;
+
+    const errorHandler = function(error) {
+        console.error('Session error:', error);
+        return Promise.reject(error);
+    };
+
+    const label = function(role) {
+        return `session ${
+            role === 'user' ? 'U' : 'AI'
+        }`;
+    };
+
+    // Public API
+    return {
+        /**
+         * Create a new chat session
+         * @returns {Promise<Object>} Promise resolving to session data
+         */
+        createSession: async function() {
+            try {
+                const response = await fetch('/api/sessions', { method: 'POST' });
+                return await response.json();
+            } catch (error) {
+                return errorHandler(error);
+            }
+        },
+
+        getSessionId: function() {
+            return sessionId;
+        },
+
+        label: label
+    };
+})();
+"""
+
+# Shape of the services under electron/file-services
+CLASS_JS = """class APIService {
+  constructor() {
+    this.sessionId = null;
+  }
+
+  async initialize(mainWindow, config = {}) {
+    this.mainWindow = mainWindow;
+    return this;
+  }
+
+  // Keeps the socket open
+  connect(options = { retries: 3 }) {
+    return options;
+  }
+}
+
+module.exports = new APIService();
+"""
+
+PYTHON = '''class Service:
+    """Handles sessions"""
+
+    def create(self, name: str,
+               # Only used by tests
+               debug: bool = False):
+        # Validate first
+        """Create a session"""
+        return name
+'''
+
+
+class OutlineRendererTest(unittest.TestCase):
+    def test_module_pattern_lists_private_functions_and_returned_api(self):
+        outline = render_outline("frontend/static/js/services/session.service.js", MODULE_JS).split("\n")
+
+        self.assertEqual(outline, [
+            "const SessionService = (function() {",
+            "    let sessionId = null;",
+            "    const errorHandler = function(error) { ... }",
+            "    const label = function(role) { ... }",
+            "    return {",
+            "        createSession: async function() { ... }",
+            "        getSessionId: function() { ... }",
+            "    };",
+            "})();",
+        ])
+
+    def test_header_is_split_at_the_body_brace(self):
+        outline = render_outline("electron/file-services/api-service.js", CLASS_JS).split("\n")
+
+        self.assertIn("  async initialize(mainWindow, config = {}) { ... }", outline)
+        self.assertIn("  connect(options = { retries: 3 }) { ... }", outline)
+        self.assertNotIn("  // Keeps the socket open", outline)
+
+    def test_python_outline_drops_comment_lines(self):
+        outline = render_outline("service.py", PYTHON)
+
+        self.assertNotIn("#", outline)
+        self.assertIn("    def create(self, name: str,", outline)
+        self.assertIn('        """Create a session"""', outline)
+
+
+if __name__ == '__main__':
+    unittest.main()